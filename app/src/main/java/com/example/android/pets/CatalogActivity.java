@@ -15,29 +15,44 @@
  */
 package com.example.android.pets;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.EditText;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetColumnarSnapshot;
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetImporter;
+import com.example.android.pets.data.PetSnapshotStore;
+import com.example.android.pets.data.PetWriteQueue;
+
+import java.io.IOException;
+import java.io.InputStream;
 
 
 /**
@@ -45,7 +60,7 @@ import com.example.android.pets.data.PetDbHelper;
  */
 public class CatalogActivity
         extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<Cursor> {
+        implements LoaderManager.LoaderCallbacks<PetRows> {
 
     public static final String EDITOR_EDIT_MODE = "Edit";
     public static final String EDITOR_INSERT_MODE = "Insert";
@@ -55,6 +70,40 @@ public class CatalogActivity
     private static final int PET_LOADER = 1;
     private PetDbHelper mDbHelper;
     private PetCursorAdapter mPetCursorAdapter;
+    private View mEmptyView;
+
+    // The list is loaded by pages, by the PetDeltaLoader
+    private static final int PAGE_SIZE = 50;
+    // Load the next page when the user scrolls at less than PREFETCH_DISTANCE rows of the end
+    private static final int PREFETCH_DISTANCE = 20;
+
+    // Last list of pets loaded (displayed when there is no search)
+    private PetRows mPetsRows;
+
+    // Full-text search
+    private static final int SEARCH_LOADER = 0;
+    private static final int SEARCH_LIMIT = 100;
+    private static final String ARG_SEARCH_QUERY = "searchQuery";
+    // Current search, or null when the whole list is displayed
+    private String mSearchQuery = null;
+
+    // Sort and filter of the list (see the indexes of PetDbHelper): the view by name is read
+    // by a PetViewLoader, by pages of VIEW_PAGE_SIZE pets; the views by weight by a
+    // PetSnapshotViewLoader
+    private static final int VIEW_LOADER = 2;
+    private static final int VIEW_PAGE_SIZE = 200;
+    private static final String STATE_VIEW = "view";
+    private static final String STATE_WEIGHT_MIN = "weightMin";
+    private static final String STATE_WEIGHT_MAX = "weightMax";
+    // Menu item of the current view
+    private int mViewId = R.id.action_view_all;
+    private PetRows mViewRows;
+    // Range of the weight range view (kg)
+    private int mWeightMin = 0;
+    private int mWeightMax = 10;
+
+    // Request of the file to import
+    private static final int IMPORT_REQUEST = 1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,26 +114,23 @@ public class CatalogActivity
         // and pass the context, which is the current activity.
         mDbHelper = new PetDbHelper(this);
 
-        // Find the ListView which will be populated with the pet data
-        ListView petListView = (ListView) findViewById(R.id.list_view_pet);
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        // Bind the Empty View to the ListView
-        petListView.setEmptyView(emptyView);
-
-        // Create the CURSOR ADAPTER and bind it to the ListView
-        mPetCursorAdapter = new PetCursorAdapter(this, null);
-        petListView.setAdapter(mPetCursorAdapter);
-
-        // Add an onItemClick listener on the List View
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Find the RecyclerView which will be populated with the pet data
+        RecyclerView petRecyclerView = (RecyclerView) findViewById(R.id.recycler_view_pet);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        petRecyclerView.setLayoutManager(layoutManager);
+        petRecyclerView.setHasFixedSize(true);
+        // Find the empty view, so that it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
+
+        // Create the ADAPTER and bind it to the RecyclerView.
+        // A click on a pet opens it in the EditorActivity
+        mPetCursorAdapter = new PetCursorAdapter(this, new PetCursorAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(long id) {
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
                 // Use a ContentResolver + ContentProvider + UriMatcher to insert a new pet
                 Uri queryId = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
-                Log.e(LOG_TAG, queryId.toString());
 
                 intent.putExtra("type", EDITOR_EDIT_MODE);
                 intent.setData(queryId);
@@ -92,6 +138,35 @@ public class CatalogActivity
                 startActivity(intent);
             }
         });
+        mPetCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+        petRecyclerView.setAdapter(mPetCursorAdapter);
+        updateEmptyView();
+
+        // Load the next page before the user reaches the end of the list
+        petRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                if (lastVisibleItem + PREFETCH_DISTANCE >= mPetCursorAdapter.getItemCount()) {
+                    loadNextPage();
+                }
+            }
+        });
 
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
@@ -105,9 +180,17 @@ public class CatalogActivity
             }
         });
 
-        // Create and initialize the CURSOR LOADER
-        // to execute the query in a background thread
+        // Create and initialize the LOADER of the pets: it reads the first page
+        // in a background thread
         getLoaderManager().initLoader(PET_LOADER, null, this);
+        if (savedInstanceState != null) {
+            mViewId = savedInstanceState.getInt(STATE_VIEW, R.id.action_view_all);
+            mWeightMin = savedInstanceState.getInt(STATE_WEIGHT_MIN, mWeightMin);
+            mWeightMax = savedInstanceState.getInt(STATE_WEIGHT_MAX, mWeightMax);
+        }
+        if (mViewId != R.id.action_view_all) {
+            getLoaderManager().initLoader(VIEW_LOADER, null, this);
+        }
 
     }
 
@@ -116,9 +199,33 @@ public class CatalogActivity
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Search the pets while the user types
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // Before each display: the weight range view is set by its dialog, not by its item
+        menu.findItem(mViewId).setChecked(true);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -132,10 +239,50 @@ public class CatalogActivity
             case R.id.action_delete_all_entries:
                 showDeleteConfirmationDialog();
                 return true;
+
+                // Respond to a click on the "Import pets" menu option
+            case R.id.action_import_pets:
+                chooseImportFile();
+                return true;
+
+                // Respond to a click on a sort or filter option
+            case R.id.action_view_all:
+            case R.id.action_view_by_name:
+            case R.id.action_view_males:
+            case R.id.action_view_females:
+            case R.id.action_view_unknown_gender:
+            case R.id.action_view_by_weight:
+                item.setChecked(true);
+                setView(item.getItemId());
+                return true;
+
+                // Respond to a click on the weight range filter: ask the range first
+            case R.id.action_view_weight_range:
+                showWeightRangeDialog();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_VIEW, mViewId);
+        outState.putInt(STATE_WEIGHT_MIN, mWeightMin);
+        outState.putInt(STATE_WEIGHT_MAX, mWeightMax);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == IMPORT_REQUEST) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                new ImportTask(data.getData()).execute();
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
     /***************************************
      *
      * InsertPet
@@ -175,16 +322,61 @@ public class CatalogActivity
      *********************************************/
     private void deleteAllPets() {
 
-        int nbPetDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-        if (nbPetDeleted > 0) {
-            Toast.makeText(this,
-                    getString(R.string.catalog_delete_pets_successful),
-                    Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this,
-                    getString(R.string.catalog_delete_pet_failed),
-                    Toast.LENGTH_SHORT).show();
-        }
+        // The delete runs on the writer thread: the list is refreshed by the notification
+        PetWriteQueue.getInstance(this).delete(PetEntry.CONTENT_URI, null, null,
+                new PetWriteQueue.Callback() {
+                    @Override
+                    public void onWriteDone(ContentProviderResult result, Exception error) {
+                        if (isFinishing() || isDestroyed()) {
+                            // The activity is gone: nothing to show
+                            return;
+                        }
+                        if (result == null) {
+                            Toast.makeText(CatalogActivity.this,
+                                    getString(R.string.catalog_delete_pet_failed),
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        // No pet deleted: the table was already empty, nothing to undo
+                        if (result.count != null && result.count > 0) {
+                            // The pets can be put back during the undo window of the provider
+                            Snackbar.make(findViewById(R.id.fab),
+                                    R.string.catalog_delete_pets_successful, Snackbar.LENGTH_LONG)
+                                    .setDuration(getResources().getInteger(R.integer.pets_undo_clear_window_ms))
+                                    .setAction(R.string.undo, new View.OnClickListener() {
+                                        @Override
+                                        public void onClick(View view) {
+                                            undoDeleteAllPets();
+                                        }
+                                    })
+                                    .show();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Put back the pets deleted by {@link #deleteAllPets()}, in the background.
+     * The list is refreshed by the notification.
+     */
+    private void undoDeleteAllPets() {
+        new AsyncTask<Void, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Void... voids) {
+                return getContentResolver().call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_UNDO_CLEAR_PETS, null, null);
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                int nbRestored = result == null ? 0 : result.getInt(PetContract.KEY_PETS_RESTORED);
+                Toast.makeText(CatalogActivity.this,
+                        nbRestored > 0
+                                ? getString(R.string.catalog_undo_delete_pets_successful, nbRestored)
+                                : getString(R.string.catalog_undo_delete_pets_failed),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
     }
 
     /*************************************************************************************
@@ -221,38 +413,352 @@ public class CatalogActivity
 
     /********************************
      *
-     * ADD A CURSOR LOADER
+     * IMPORT
+     *
+     *********************************/
+    private void chooseImportFile() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES,
+                new String[] {PetEntry.EXPORT_TYPE_CSV, PetEntry.EXPORT_TYPE_JSON, "text/*"});
+        startActivityForResult(intent, IMPORT_REQUEST);
+    }
+
+    /**
+     * Import a file in the background, with its progress in a dialog.
+     * The list is refreshed by the provider notifications, chunk by chunk.
+     */
+    private class ImportTask extends AsyncTask<Void, PetImporter.Progress, PetImporter.Progress> {
+        private final Uri mFileUri;
+        private ProgressDialog mProgressDialog;
+        private PetImporter.Progress mLastProgress = new PetImporter.Progress();
+        private IOException mError;
+
+        ImportTask(Uri fileUri) {
+            mFileUri = fileUri;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = new ProgressDialog(CatalogActivity.this);
+            mProgressDialog.setTitle(R.string.action_import_pets);
+            mProgressDialog.setMessage(getString(R.string.import_progress, 0, 0));
+            mProgressDialog.setIndeterminate(true);
+            mProgressDialog.setCancelable(false);
+            mProgressDialog.show();
+        }
+
+        @Override
+        protected PetImporter.Progress doInBackground(Void... voids) {
+            String mimeType = getContentResolver().getType(mFileUri);
+            if (mFileUri.getPath() != null && mFileUri.getPath().endsWith(".json")) {
+                mimeType = PetEntry.EXPORT_TYPE_JSON;
+            }
+
+            InputStream inputStream = null;
+            try {
+                inputStream = getContentResolver().openInputStream(mFileUri);
+                if (inputStream == null) {
+                    throw new IOException("Can't open " + mFileUri);
+                }
+                return new PetImporter(getContentResolver()).importPets(inputStream, mimeType,
+                        new PetImporter.ProgressListener() {
+                            @Override
+                            public void onProgress(PetImporter.Progress progress) {
+                                publishProgress(progress);
+                            }
+                        });
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Import of " + mFileUri + " failed", e);
+                mError = e;
+                return mLastProgress;
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        // Nothing more to do
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(PetImporter.Progress... progress) {
+            mLastProgress = progress[progress.length - 1];
+            mProgressDialog.setMessage(getString(R.string.import_progress,
+                    mLastProgress.nbImported, mLastProgress.nbRejected));
+        }
+
+        @Override
+        protected void onPostExecute(PetImporter.Progress progress) {
+            if (mProgressDialog.isShowing()) {
+                mProgressDialog.dismiss();
+            }
+
+            String message = mError == null
+                    ? getString(R.string.import_finished,
+                            progress.nbImported, progress.nbRejected, progress.getThroughput())
+                    : getString(R.string.import_error, mLastProgress.nbImported);
+            Toast.makeText(CatalogActivity.this, message, Toast.LENGTH_LONG).show();
+        }
+    }
+
+
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mPetCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /********************************
+     *
+     * SEARCH
+     *
+     *********************************/
+    private void search(String query) {
+        query = query == null ? null : query.trim();
+
+        if (TextUtils.isEmpty(query)) {
+            // Back to the whole list
+            if (mSearchQuery != null) {
+                mSearchQuery = null;
+                mPetCursorAdapter.swapRows(getListRows());
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+            }
+            return;
+        }
+
+        if (query.equals(mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = query;
+
+        Bundle args = new Bundle();
+        args.putString(ARG_SEARCH_QUERY, query);
+        getLoaderManager().restartLoader(SEARCH_LOADER, args, this);
+    }
+
+
+    /********************************
+     *
+     * SORT AND FILTER
+     *
+     *********************************/
+    private void setView(int viewId) {
+        if (viewId == mViewId) {
+            return;
+        }
+        mViewId = viewId;
+
+        if (viewId == R.id.action_view_all) {
+            // Back to the list by ID, always kept by the PET_LOADER
+            getLoaderManager().destroyLoader(VIEW_LOADER);
+            mViewRows = null;
+            if (mSearchQuery == null) {
+                mPetCursorAdapter.swapRows(mPetsRows);
+            }
+            return;
+        }
+        getLoaderManager().restartLoader(VIEW_LOADER, null, this);
+    }
+
+    // List displayed when there is no search
+    private PetRows getListRows() {
+        return mViewId == R.id.action_view_all ? mPetsRows : mViewRows;
+    }
+
+    /**
+     * The view sorted by name is a query shape served by an index (see PetQueryPlansTest):
+     * the covering index on name, breed gives the order, and each page seeks after the last
+     * pet of the previous one.
+     * The views sorted by weight (all the pets, a range of weight, a gender) are filtered and
+     * sorted in the columnar snapshot of the pets, with the same queries by pages until the
+     * snapshot is loaded (served by the index on weight, or on gender, weight).
+     */
+    private Loader<PetRows> createViewLoader() {
+        PetSnapshotStore store = PetSnapshotStore.getInstance(this);
+        int gender;
+        switch (mViewId) {
+            case R.id.action_view_by_name:
+                return new PetViewLoader(this, PetEntry.COLUMN_PET_NAME, null, null, VIEW_PAGE_SIZE);
+            case R.id.action_view_by_weight:
+                return new PetSnapshotViewLoader(this, store, new PetColumnarSnapshot.Filter(),
+                        null, null, VIEW_PAGE_SIZE);
+            case R.id.action_view_weight_range:
+                return new PetSnapshotViewLoader(this, store,
+                        new PetColumnarSnapshot.Filter().setWeightRange(mWeightMin, mWeightMax),
+                        PetEntry.SELECTION_WEIGHT_RANGE,
+                        new String[] {String.valueOf(mWeightMin), String.valueOf(mWeightMax)},
+                        VIEW_PAGE_SIZE);
+            case R.id.action_view_males:
+                gender = PetEntry.GENDER_MALE;
+                break;
+            case R.id.action_view_females:
+                gender = PetEntry.GENDER_FEMALE;
+                break;
+            default:
+                gender = PetEntry.GENDER_UNKNOWN;
+                break;
+        }
+        return new PetSnapshotViewLoader(this, store, new PetColumnarSnapshot.Filter().setGender(gender),
+                PetEntry.SELECTION_GENDER, new String[] {String.valueOf(gender)},
+                VIEW_PAGE_SIZE);
+    }
+
+    /**
+     * Ask the range of the weight range view, then show it (again, if the range changed).
+     */
+    private void showWeightRangeDialog() {
+        final View rangeView = getLayoutInflater().inflate(R.layout.dialog_weight_range, null);
+        final EditText minEditText = (EditText) rangeView.findViewById(R.id.edit_weight_min);
+        final EditText maxEditText = (EditText) rangeView.findViewById(R.id.edit_weight_max);
+        minEditText.setText(String.valueOf(mWeightMin));
+        maxEditText.setText(String.valueOf(mWeightMax));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.weight_range_dialog_title);
+        builder.setView(rangeView);
+        builder.setPositiveButton(R.string.weight_range_apply, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                String min = minEditText.getText().toString().trim();
+                String max = maxEditText.getText().toString().trim();
+                int weightMin;
+                int weightMax;
+                try {
+                    weightMin = Integer.parseInt(min);
+                    weightMax = Integer.parseInt(max);
+                } catch (NumberFormatException e) {
+                    weightMin = -1;
+                    weightMax = -1;
+                }
+                if (weightMin < 0 || weightMin > weightMax) {
+                    Toast.makeText(CatalogActivity.this, R.string.weight_range_error, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                setWeightRange(weightMin, weightMax);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    private void setWeightRange(int weightMin, int weightMax) {
+        mWeightMin = weightMin;
+        mWeightMax = weightMax;
+        if (mViewId != R.id.action_view_weight_range) {
+            setView(R.id.action_view_weight_range);
+            return;
+        }
+        // Same view, new range: from its first page
+        getLoaderManager().restartLoader(VIEW_LOADER, null, this);
+    }
+
+
+    /********************************
+     *
+     * PAGINATION
+     *
+     *********************************/
+    private void loadNextPage() {
+        if (mSearchQuery != null) {
+            // The search results are not paginated
+            return;
+        }
+        if (mViewId != R.id.action_view_all) {
+            // The order of a view ends with the ID: its next page starts after its last pet
+            // (no effect once a view sorted by weight comes from the snapshot)
+            Loader<PetRows> viewLoader = getLoaderManager().getLoader(VIEW_LOADER);
+            if (viewLoader != null) {
+                ((PetViewLoader) viewLoader).loadMore();
+            }
+            return;
+        }
+
+        Loader<PetRows> loader = getLoaderManager().getLoader(PET_LOADER);
+        if (loader != null) {
+            ((PetDeltaLoader) loader).loadMore();
+        }
+    }
+
+
+    /********************************
+     *
+     * ADD A LOADER
      *
      *********************************/
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define the projection
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED
-        };
-
-        // This loader will execute the ContentProvider's query method
-        // in a bacground thread
-        return new CursorLoader(this,
-                PetEntry.CONTENT_URI,
-                projection,
-                null,
-                null,
-                null
-        );
+    public Loader<PetRows> onCreateLoader(int i, Bundle bundle) {
+        // The loaders read the rows of the list (ID, name, breed) in their background thread
+        if (i == SEARCH_LOADER) {
+            // This loader will execute the full-text search in a background thread
+            Uri searchUri = PetEntry.buildSearchUri(bundle.getString(ARG_SEARCH_QUERY))
+                    .buildUpon()
+                    .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, String.valueOf(SEARCH_LIMIT))
+                    .build();
+            return new PetRowsLoader(this, searchUri, null, null, null);
+        }
+
+        if (i == VIEW_LOADER) {
+            // This loader will read the sorted or filtered pets in a background thread
+            return createViewLoader();
+        }
+
+        // This loader keeps the pets in memory: after a change,
+        // it only reads the pets changed (in a background thread)
+        return new PetDeltaLoader(this, PAGE_SIZE);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        mPetCursorAdapter.swapCursor(cursor);
+    public void onLoadFinished(Loader<PetRows> loader, PetRows rows) {
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearchQuery != null) {
+                mPetCursorAdapter.swapRows(rows);
+            }
+            return;
+        }
+
+        if (loader.getId() == VIEW_LOADER) {
+            mViewRows = rows;
+            if (mSearchQuery == null && mViewId != R.id.action_view_all) {
+                mPetCursorAdapter.swapRows(rows);
+            }
+            return;
+        }
+
+        mPetsRows = rows;
+        if (mSearchQuery == null && mViewId == R.id.action_view_all) {
+            mPetCursorAdapter.swapRows(rows);
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mPetCursorAdapter.swapCursor(null);
+    public void onLoaderReset(Loader<PetRows> loader) {
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearchQuery != null) {
+                mPetCursorAdapter.swapRows(null);
+            }
+            return;
+        }
 
+        if (loader.getId() == VIEW_LOADER) {
+            mViewRows = null;
+            if (mSearchQuery == null && mViewId != R.id.action_view_all) {
+                mPetCursorAdapter.swapRows(null);
+            }
+            return;
+        }
+
+        mPetsRows = null;
+        if (mSearchQuery == null && mViewId == R.id.action_view_all) {
+            mPetCursorAdapter.swapRows(null);
+        }
     }
 }
-
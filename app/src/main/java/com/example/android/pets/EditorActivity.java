@@ -17,7 +17,9 @@ package com.example.android.pets;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -41,6 +43,7 @@ import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetWriteQueue;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -91,6 +94,12 @@ public class EditorActivity
     // Store the current Pet Uri when we are in EDIT mode
     private Uri mCurrentPetUri;
 
+    // Values of the pet loaded in EDIT mode: only the changed columns are updated
+    private String mLoadedName;
+    private String mLoadedBreed;
+    private int mLoadedGender;
+    private int mLoadedWeight;
+
     // Track if something has changed or not
     private boolean mPetHasChanged = false;
     // OnTouchListener that listens for any user touches on a View, implying that they are modifying
@@ -184,40 +193,74 @@ public class EditorActivity
         }
 
         ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, petName);
-        values.put(PetEntry.COLUMN_PET_BREED, petBreed);
-        values.put(PetEntry.COLUMN_PET_GENDER, mGender);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, petWeight);
 
         if (isEdit) {
-            // We are in UPDATE mode
-            int nbPetUpdated = getContentResolver().update(mCurrentPetUri, values, null, null);
+            // We are in UPDATE mode: only the changed columns
+            if (!petName.equals(mLoadedName)) {
+                values.put(PetEntry.COLUMN_PET_NAME, petName);
+            }
+            if (!petBreed.equals(mLoadedBreed == null ? "" : mLoadedBreed)) {
+                values.put(PetEntry.COLUMN_PET_BREED, petBreed);
+            }
+            if (mGender != mLoadedGender) {
+                values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+            }
+            if (petWeight != mLoadedWeight) {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, petWeight);
+            }
 
-            if (nbPetUpdated == 1) {
+            if (values.size() == 0) {
+                // Nothing to save
                 Toast.makeText(this,
                         getString(R.string.update_ok),
                         Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this,
-                        getString(R.string.update_error),
-                        Toast.LENGTH_SHORT).show();
+                return;
             }
+
+            // The write is queued: the activity can close before the end of the update
+            final Context appContext = getApplicationContext();
+            PetWriteQueue.getInstance(this).update(mCurrentPetUri, values, null, null,
+                    new PetWriteQueue.Callback() {
+                        @Override
+                        public void onWriteDone(ContentProviderResult result, Exception error) {
+                            if (result != null && result.count != null && result.count == 1) {
+                                Toast.makeText(appContext,
+                                        appContext.getString(R.string.update_ok),
+                                        Toast.LENGTH_SHORT).show();
+                            } else {
+                                Toast.makeText(appContext,
+                                        appContext.getString(R.string.update_error),
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                        }
+                    });
         } else {
             // We are in INSERT mode
 
             // Use of a Content Values to insert data in the DB
             // Creation of all key-values for a pet
-            Uri uriPetId = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-            if (uriPetId == null) {
-                Toast.makeText(this,
-                        getString(R.string.insert_error),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this,
-                        getString(R.string.ID_pet_inserted),
-                        Toast.LENGTH_SHORT).show();
-            }
+            values.put(PetEntry.COLUMN_PET_NAME, petName);
+            values.put(PetEntry.COLUMN_PET_BREED, petBreed);
+            values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, petWeight);
+
+            // The write is queued: the activity can close before the end of the insert
+            final Context appContext = getApplicationContext();
+            PetWriteQueue.getInstance(this).insert(PetEntry.CONTENT_URI, values,
+                    new PetWriteQueue.Callback() {
+                        @Override
+                        public void onWriteDone(ContentProviderResult result, Exception error) {
+                            if (result == null || result.uri == null) {
+                                Toast.makeText(appContext,
+                                        appContext.getString(R.string.insert_error),
+                                        Toast.LENGTH_SHORT).show();
+                            } else {
+                                Toast.makeText(appContext,
+                                        appContext.getString(R.string.ID_pet_inserted),
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                        }
+                    });
         }
 
     }
@@ -233,16 +276,23 @@ public class EditorActivity
             return;
         }
 
-        int nbPetDeleted = getContentResolver().delete(mCurrentPetUri, null, null);
-        if (nbPetDeleted == 1) {
-            Toast.makeText(this,
-                    getString(R.string.editor_delete_pet_successful),
-                    Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this,
-                    getString(R.string.editor_delete_pet_failed),
-                    Toast.LENGTH_SHORT).show();
-        }
+        // The delete is queued: the result comes after the activity is closed
+        final Context appContext = getApplicationContext();
+        PetWriteQueue.getInstance(this).delete(mCurrentPetUri, null, null,
+                new PetWriteQueue.Callback() {
+                    @Override
+                    public void onWriteDone(ContentProviderResult result, Exception error) {
+                        if (result != null && result.count != null && result.count == 1) {
+                            Toast.makeText(appContext,
+                                    appContext.getString(R.string.editor_delete_pet_successful),
+                                    Toast.LENGTH_SHORT).show();
+                        } else {
+                            Toast.makeText(appContext,
+                                    appContext.getString(R.string.editor_delete_pet_failed),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
 
         // Close the activity
         finish();
@@ -478,11 +528,16 @@ public class EditorActivity
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         if (cursor.moveToFirst()) {
-            mNameEditText.setText(cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)));
-            mBreedEditText.setText(cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED)));
-            mWeightEditText.setText(Integer.toString(cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT))));
+            mLoadedName = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME));
+            mLoadedBreed = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED));
+            mLoadedWeight = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT));
+            mLoadedGender = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER));
+
+            mNameEditText.setText(mLoadedName);
+            mBreedEditText.setText(mLoadedBreed);
+            mWeightEditText.setText(Integer.toString(mLoadedWeight));
 
-            mGender = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER));
+            mGender = mLoadedGender;
             // Gender is a dropdown spinner, so map the constant value from the database
             // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
             // Then call setSelection() so that option is displayed on screen as the current selection.
@@ -1,42 +1,160 @@
 package com.example.android.pets;
 
 import android.content.Context;
-import android.database.Cursor;
+import android.os.AsyncTask;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.TextView;
 
-import com.example.android.pets.data.PetContract;
+/**
+ * RecyclerView adapter of the pets list.
+ *
+ * The rows are built by the loaders, in their background threads ({@link PetRows}), and
+ * each new list is compared with the previous one in a background thread: only the rows
+ * that really changed are bound again. The main thread only applies the changes.
+ */
+public class PetCursorAdapter extends RecyclerView.Adapter<PetCursorAdapter.PetViewHolder> {
+    private static final String LOG_TAG = PetCursorAdapter.class.getSimpleName();
 
-public class PetCursorAdapter extends CursorAdapter {
+    /**
+     * Called when the user clicks on a pet of the list.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    private final Context mContext;
+    private final OnPetClickListener mOnPetClickListener;
+
+    // Rows displayed (main thread only)
+    private PetRows mRows = PetRows.EMPTY;
+    // Rows of the last swapRows (main thread only): the next diff is computed against them
+    private PetRows mLastRows = PetRows.EMPTY;
+
+    public PetCursorAdapter(Context context, OnPetClickListener onPetClickListener) {
+        mContext = context;
+        mOnPetClickListener = onPetClickListener;
+        setHasStableIds(true);
+    }
 
-    public PetCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0);
+    /**
+     * Display new rows: they are compared with the rows of the previous call in a background
+     * thread, then the changes are applied on the main thread.
+     *
+     * @param rows the new rows, or null to empty the list
+     */
+    public void swapRows(PetRows rows) {
+        if (rows == null) {
+            rows = PetRows.EMPTY;
+        }
+        if (rows == mLastRows) {
+            return;
+        }
+        new DiffTask(mLastRows, rows).execute();
+        mLastRows = rows;
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
     }
 
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        // Take the cursor's values
-        String name = cursor.getString(cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_NAME));
-        String breed = cursor.getString(cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_BREED));
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        String breed = mRows.getBreed(position);
         if (TextUtils.isEmpty(breed)) {
-            breed = context.getString(R.string.unknown_breed);
+            breed = mContext.getString(R.string.unknown_breed);
         }
 
-        // Take the Views
-        TextView tvName = (TextView) view.findViewById(R.id.tvName);
-        TextView tvBreed = (TextView) view.findViewById(R.id.tvBreed);
-
         // Bind the views with the data
-        tvName.setText(name);
-        tvBreed.setText(breed);
+        holder.tvName.setText(mRows.getName(position));
+        holder.tvBreed.setText(breed);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.getCount();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRows.getId(position);
+    }
+
+    /**
+     * The views of a row, found once when the row is created.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView tvName;
+        final TextView tvBreed;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            tvName = (TextView) itemView.findViewById(R.id.tvName);
+            tvBreed = (TextView) itemView.findViewById(R.id.tvBreed);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (getAdapterPosition() != RecyclerView.NO_POSITION && mOnPetClickListener != null) {
+                mOnPetClickListener.onPetClick(getItemId());
+            }
+        }
+    }
+
+    /**
+     * Compute the differences of the new rows with the previous ones, in the background.
+     * Both lists are given to the task: it only reads them (they are immutable).
+     */
+    private class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+        private final PetRows mOldRows;
+        private final PetRows mNewRows;
+
+        DiffTask(PetRows oldRows, PetRows newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... voids) {
+            final PetRows oldRows = mOldRows;
+            final PetRows newRows = mNewRows;
+            return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldRows.getCount();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return newRows.getCount();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return oldRows.getId(oldPosition) == newRows.getId(newPosition);
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return TextUtils.equals(oldRows.getName(oldPosition), newRows.getName(newPosition))
+                            && TextUtils.equals(oldRows.getBreed(oldPosition), newRows.getBreed(newPosition));
+                }
+            }, false);
+        }
+
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult diffResult) {
+            // The tasks run one after the other (serial executor): the rows displayed are the
+            // old rows of this task
+            mRows = mNewRows;
+            diffResult.dispatchUpdatesTo(PetCursorAdapter.this);
+        }
     }
 }
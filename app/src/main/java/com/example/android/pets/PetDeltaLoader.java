@@ -0,0 +1,333 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangesEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetSnapshotStore;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Loader of the pets list, sorted by ID, that keeps a copy of the pets in memory.
+ *
+ * The pets are read by pages (keyset pagination, {@link #loadMore()}). When the pets change,
+ * only the pets changed since the last load are read (from the log of the changes,
+ * {@link PetChangesEntry}) and patched into the copy: the cost of a refresh depends on
+ * the number of changes, not on the number of pets. If the log doesn't go back far enough,
+ * the pets already loaded are read again.
+ *
+ * The rows delivered are the copy itself (immutable, built in the background thread of
+ * the loader): the adapter displays them as they are.
+ */
+public class PetDeltaLoader extends AsyncTaskLoader<PetRows> {
+    private static final String LOG_TAG = PetDeltaLoader.class.getSimpleName();
+
+    // Columns of the copy
+    public static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+    private static final String[] CHANGES_COLUMNS = {
+            PetChangesEntry._ID,
+            PetChangesEntry.COLUMN_SEQUENCE,
+            PetChangesEntry.COLUMN_DELETED,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private final int mPageSize;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered = false;
+
+    // State of the copy: only changed by loadInBackground (the loads run one after the other)
+    private PetSnapshot mSnapshot;
+    // Last change of the log already in the copy
+    private long mLastSequence;
+    // Last ID covered by the pages loaded (Long.MAX_VALUE once the last page is loaded).
+    // It stays when this pet is deleted: the next page starts after it, so no pet is read twice
+    private long mWindowEnd;
+
+    private volatile boolean mMoreRequested = false;
+    private volatile boolean mComplete = false;
+
+    // Last rows delivered
+    private PetRows mRows;
+
+    public PetDeltaLoader(Context context, int pageSize) {
+        super(context);
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Load the next page (no effect if all the pets are loaded, or if a page is on its way).
+     */
+    public void loadMore() {
+        if (mComplete || mMoreRequested) {
+            return;
+        }
+        mMoreRequested = true;
+        forceLoad();
+    }
+
+    @Override
+    public PetRows loadInBackground() {
+        ContentResolver contentResolver = getContext().getContentResolver();
+
+        if (mSnapshot == null) {
+            // First load: the sequence is read before the pets, so no change can be missed
+            // (the changes give the current values: applying one again is harmless)
+            mLastSequence = PetSnapshotStore.readSequences(contentResolver)[1];
+            mSnapshot = PetSnapshot.EMPTY;
+            mWindowEnd = 0;
+            loadPage(contentResolver);
+        } else {
+            applyChanges(contentResolver);
+            if (mMoreRequested) {
+                // Cleared after the page only: a request that comes during the load of a change
+                // (after this test) is for the next load, it must not be lost
+                loadPage(contentResolver);
+                mMoreRequested = false;
+            }
+        }
+
+        return mSnapshot;
+    }
+
+    private void loadPage(ContentResolver contentResolver) {
+        if (mWindowEnd == Long.MAX_VALUE) {
+            return;
+        }
+
+        Cursor cursor = contentResolver.query(PetEntry.buildPageUri(mWindowEnd, mPageSize),
+                COLUMNS, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        PetSnapshot page;
+        try {
+            page = PetSnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        mSnapshot = mSnapshot.append(page);
+        if (page.count < mPageSize) {
+            mWindowEnd = Long.MAX_VALUE;
+            mComplete = true;
+        } else {
+            mWindowEnd = page.ids[page.count - 1];
+        }
+    }
+
+    private void applyChanges(ContentResolver contentResolver) {
+        long[] sequences = PetSnapshotStore.readSequences(contentResolver);
+        if (sequences[1] == mLastSequence) {
+            return;
+        }
+
+        if (sequences[0] > mLastSequence + 1) {
+            // The log doesn't go back to the last load: read again the pets already loaded
+            Log.i(LOG_TAG, "Changes lost since " + mLastSequence + ": reload");
+            mLastSequence = sequences[1];
+            reloadWindow(contentResolver);
+            return;
+        }
+
+        Cursor cursor = contentResolver.query(PetChangesEntry.buildChangesUri(mLastSequence),
+                CHANGES_COLUMNS, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            int nbChanges = cursor.getCount();
+            long[] ids = new long[nbChanges];
+            boolean[] deleted = new boolean[nbChanges];
+            String[] names = new String[nbChanges];
+            String[] breeds = new String[nbChanges];
+
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                mLastSequence = Math.max(mLastSequence, cursor.getLong(1));
+                deleted[i] = cursor.getInt(2) != 0;
+                names[i] = cursor.getString(3);
+                breeds[i] = cursor.getString(4);
+            }
+
+            mSnapshot = mSnapshot.patch(ids, deleted, names, breeds, mWindowEnd);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void reloadWindow(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI,
+                COLUMNS,
+                PetEntry._ID + "<=?",
+                new String[] {String.valueOf(mWindowEnd)},
+                PetEntry._ID + " ASC");
+        if (cursor == null) {
+            return;
+        }
+        try {
+            mSnapshot = PetSnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* ********************************************
+
+               Loader life cycle
+
+    ********************************************** */
+    @Override
+    public void deliverResult(PetRows rows) {
+        if (isReset()) {
+            return;
+        }
+        mRows = rows;
+        if (isStarted()) {
+            super.deliverResult(rows);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            // The pets URIs are notified below the CONTENT_URI
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mRows != null) {
+            deliverResult(mRows);
+        }
+        if (takeContentChanged() || mRows == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mRows = null;
+        mSnapshot = null;
+        mComplete = false;
+        mMoreRequested = false;
+    }
+
+    /* ********************************************
+
+               Copy of the pets
+
+    ********************************************** */
+
+    /**
+     * Immutable copy of the pets, sorted by ID: each change makes a new copy.
+     */
+    private static class PetSnapshot extends PetRows.ArrayRows {
+        static final PetSnapshot EMPTY = new PetSnapshot(0);
+
+        PetSnapshot(int count) {
+            super(count);
+        }
+
+        // The cursor has the COLUMNS, sorted by ID
+        static PetSnapshot fromCursor(Cursor cursor) {
+            PetSnapshot snapshot = new PetSnapshot(cursor.getCount());
+            for (int i = 0; i < snapshot.count && cursor.moveToPosition(i); i++) {
+                snapshot.ids[i] = cursor.getLong(0);
+                snapshot.names[i] = cursor.getString(1);
+                snapshot.breeds[i] = cursor.getString(2);
+            }
+            return snapshot;
+        }
+
+        // The IDs of the page are all after the IDs of this copy
+        PetSnapshot append(PetSnapshot page) {
+            PetSnapshot snapshot = new PetSnapshot(count + page.count);
+            copy(this, 0, snapshot, 0, count);
+            copy(page, 0, snapshot, count, page.count);
+            return snapshot;
+        }
+
+        /**
+         * Apply the changes: the pets deleted are removed, the others are replaced or inserted
+         * at their place. The pets after windowEnd are not loaded yet: they are ignored.
+         */
+        PetSnapshot patch(long[] changedIds, boolean[] deleted, String[] changedNames, String[] changedBreeds,
+                          long windowEnd) {
+            // Sort the changes by ID, to merge them with the copy in one pass
+            int nbChanges = changedIds.length;
+            Integer[] order = new Integer[nbChanges];
+            for (int i = 0; i < nbChanges; i++) {
+                order[i] = i;
+            }
+            final long[] sortIds = changedIds;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(sortIds[a], sortIds[b]);
+                }
+            });
+
+            PetSnapshot snapshot = new PetSnapshot(count + nbChanges);
+            int size = 0;
+            int position = 0;
+            for (int j = 0; j < nbChanges; j++) {
+                int change = order[j];
+                long id = changedIds[change];
+                if (id > windowEnd) {
+                    break;
+                }
+
+                // The pets before the changed one are unchanged
+                while (position < count && ids[position] < id) {
+                    copy(this, position++, snapshot, size++, 1);
+                }
+                if (position < count && ids[position] == id) {
+                    // Replaced or removed
+                    position++;
+                }
+                if (!deleted[change]) {
+                    snapshot.ids[size] = id;
+                    snapshot.names[size] = changedNames[change];
+                    snapshot.breeds[size] = changedBreeds[change];
+                    size++;
+                }
+            }
+            copy(this, position, snapshot, size, count - position);
+            size += count - position;
+
+            return size == snapshot.count ? snapshot : snapshot.truncate(size);
+        }
+
+        private PetSnapshot truncate(int size) {
+            PetSnapshot snapshot = new PetSnapshot(size);
+            copy(this, 0, snapshot, 0, size);
+            return snapshot;
+        }
+
+        private static void copy(PetSnapshot from, int fromPosition, PetSnapshot to, int toPosition, int length) {
+            System.arraycopy(from.ids, fromPosition, to.ids, toPosition, length);
+            System.arraycopy(from.names, fromPosition, to.names, toPosition, length);
+            System.arraycopy(from.breeds, fromPosition, to.breeds, toPosition, length);
+        }
+    }
+}
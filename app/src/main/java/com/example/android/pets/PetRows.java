@@ -0,0 +1,97 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Immutable rows of the pets list: the ID, the name and the breed of each pet.
+ *
+ * The loaders build the rows in their background thread (the cursors are read and closed
+ * there), and {@link PetCursorAdapter} only compares and displays them: a new list of rows
+ * never needs to be copied on the main thread.
+ */
+public abstract class PetRows {
+
+    public static final PetRows EMPTY = new ArrayRows(0);
+
+    public abstract int getCount();
+
+    public abstract long getId(int position);
+
+    public abstract String getName(int position);
+
+    public abstract String getBreed(int position);
+
+    /**
+     * Copy the rows of a cursor (in a background thread): the column indices are resolved once.
+     *
+     * @param cursor a cursor with the ID, the name and the breed of the pets
+     */
+    public static PetRows read(Cursor cursor) {
+        return ArrayRows.copyOf(cursor);
+    }
+
+    /**
+     * Rows in arrays.
+     */
+    static class ArrayRows extends PetRows {
+        final int count;
+        final long[] ids;
+        final String[] names;
+        final String[] breeds;
+
+        ArrayRows(int count) {
+            this.count = count;
+            ids = new long[count];
+            names = new String[count];
+            breeds = new String[count];
+        }
+
+        static ArrayRows copyOf(Cursor cursor) {
+            int idIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+            int nameIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+            int breedIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+
+            ArrayRows rows = new ArrayRows(cursor.getCount());
+            for (int i = 0; i < rows.count && cursor.moveToPosition(i); i++) {
+                rows.ids[i] = cursor.getLong(idIndex);
+                rows.names[i] = cursor.getString(nameIndex);
+                rows.breeds[i] = cursor.getString(breedIndex);
+            }
+            return rows;
+        }
+
+        // The rows of this list, then the rows of the page
+        ArrayRows concat(ArrayRows page) {
+            ArrayRows rows = new ArrayRows(count + page.count);
+            System.arraycopy(ids, 0, rows.ids, 0, count);
+            System.arraycopy(names, 0, rows.names, 0, count);
+            System.arraycopy(breeds, 0, rows.breeds, 0, count);
+            System.arraycopy(page.ids, 0, rows.ids, count, page.count);
+            System.arraycopy(page.names, 0, rows.names, count, page.count);
+            System.arraycopy(page.breeds, 0, rows.breeds, count, page.count);
+            return rows;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public long getId(int position) {
+            return ids[position];
+        }
+
+        @Override
+        public String getName(int position) {
+            return names[position];
+        }
+
+        @Override
+        public String getBreed(int position) {
+            return breeds[position];
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Loader of a query of the pets list (the search, the sorted and filtered views), like a
+ * CursorLoader: but the cursor is read into {@link PetRows} and closed in the background
+ * thread of the loader, so the main thread never copies a cursor.
+ *
+ * The query is loaded again when the pets change.
+ */
+public class PetRowsLoader extends AsyncTaskLoader<PetRows> {
+
+    // Columns of the rows
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private final Uri mUri;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered = false;
+
+    // Last rows delivered
+    private PetRows mRows;
+
+    public PetRowsLoader(Context context, Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+        super(context);
+        mUri = uri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+    }
+
+    @Override
+    public PetRows loadInBackground() {
+        Cursor cursor = getContext().getContentResolver().query(mUri, COLUMNS, mSelection, mSelectionArgs, mSortOrder);
+        if (cursor == null) {
+            return PetRows.EMPTY;
+        }
+        try {
+            return PetRows.read(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* ********************************************
+
+               Loader life cycle
+
+    ********************************************** */
+    @Override
+    public void deliverResult(PetRows rows) {
+        if (isReset()) {
+            return;
+        }
+        mRows = rows;
+        if (isStarted()) {
+            super.deliverResult(rows);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            // The pets URIs are notified below the CONTENT_URI
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mRows != null) {
+            deliverResult(mRows);
+        }
+        if (takeContentChanged() || mRows == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mRows = null;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.example.android.pets.data.PetColumnarSnapshot;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetSnapshotStore;
+
+/**
+ * Loader of a view of the pets sorted by weight (all the pets, a gender or a range of weight),
+ * filtered and sorted in the {@link PetColumnarSnapshot} of the {@link PetSnapshotStore}.
+ *
+ * Once the store has its first snapshot, the whole view is built in one pass on its arrays:
+ * a filter into positions and a sort of primitives, with no query. The rows read the
+ * snapshot through the positions, nothing is copied by pet. Each new snapshot of the store
+ * builds the view again (the notifications of the provider go through the store).
+ *
+ * Until the first snapshot, the view is read by pages from the provider, like a
+ * {@link PetViewLoader}: the selection must give the same pets as the filter.
+ */
+public class PetSnapshotViewLoader extends PetViewLoader implements PetSnapshotStore.Listener {
+
+    private final PetSnapshotStore mStore;
+    private final PetColumnarSnapshot.Filter mFilter;
+    private boolean mListening = false;
+
+    // Last snapshot of the store (main thread), null until the first one
+    private volatile PetColumnarSnapshot mSnapshot;
+
+    // Snapshot of the last rows built, and these rows (background thread)
+    private PetColumnarSnapshot mRowsSnapshot;
+    private PetRows mSnapshotRows;
+    // Work array of the sort, kept from one load to the next
+    private long[] mScratch = new long[0];
+
+    /**
+     * @param store         store of the snapshots
+     * @param filter        filter of the view in the snapshot
+     * @param selection     the same filter for the provider (before the first snapshot), or null
+     * @param selectionArgs
+     * @param pageSize      size of the pages read from the provider
+     */
+    public PetSnapshotViewLoader(Context context, @NonNull PetSnapshotStore store,
+                                 @NonNull PetColumnarSnapshot.Filter filter,
+                                 String selection, String[] selectionArgs, int pageSize) {
+        super(context, PetEntry.COLUMN_PET_WEIGHT, selection, selectionArgs, pageSize);
+        mStore = store;
+        mFilter = filter;
+    }
+
+    @Override
+    public void onSnapshotChanged(@NonNull PetColumnarSnapshot snapshot) {
+        if (isReset()) {
+            return;
+        }
+        mSnapshot = snapshot;
+        super.onContentChanged();
+    }
+
+    @Override
+    public void onContentChanged() {
+        // The notifications of the provider: only read before the first snapshot,
+        // the store reads the changes after
+        if (mSnapshot == null) {
+            super.onContentChanged();
+        }
+    }
+
+    @Override
+    public void loadMore() {
+        // The snapshot gives the whole view at once
+        if (mSnapshot == null) {
+            super.loadMore();
+        }
+    }
+
+    @Override
+    public PetRows loadInBackground() {
+        PetColumnarSnapshot snapshot = mSnapshot;
+        if (snapshot == null && mStore.getSnapshot() != PetColumnarSnapshot.EMPTY) {
+            // Loaded by another screen
+            snapshot = mStore.getSnapshot();
+        }
+        if (snapshot == null) {
+            return super.loadInBackground();
+        }
+        if (snapshot == mRowsSnapshot) {
+            return mSnapshotRows;
+        }
+
+        int count = snapshot.getCount();
+        int[] positions = new int[count];
+        int nbPositions = snapshot.filter(mFilter, positions);
+        if (mScratch.length < nbPositions) {
+            mScratch = new long[nbPositions];
+        }
+        // Same order as the pages: weight ASC, _id ASC (the positions follow the IDs)
+        snapshot.sortByWeight(positions, nbPositions, mScratch);
+
+        mRowsSnapshot = snapshot;
+        mSnapshotRows = new SnapshotRows(snapshot, positions, nbPositions);
+        return mSnapshotRows;
+    }
+
+    /**
+     * Rows of a view of a snapshot: the positions of its pets in the snapshot.
+     */
+    static class SnapshotRows extends PetRows {
+        private final PetColumnarSnapshot mSnapshot;
+        private final int[] mPositions;
+        private final int mCount;
+
+        SnapshotRows(PetColumnarSnapshot snapshot, int[] positions, int count) {
+            mSnapshot = snapshot;
+            mPositions = positions;
+            mCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public long getId(int position) {
+            return mSnapshot.getId(mPositions[position]);
+        }
+
+        @Override
+        public String getName(int position) {
+            return mSnapshot.getName(mPositions[position]);
+        }
+
+        @Override
+        public String getBreed(int position) {
+            return mSnapshot.getBreed(mPositions[position]);
+        }
+    }
+
+    /* ********************************************
+
+               Loader life cycle
+
+    ********************************************** */
+    @Override
+    protected void onStartLoading() {
+        if (!mListening) {
+            // The store delivers its current snapshot once it is loaded
+            mStore.addListener(this);
+            mListening = true;
+        }
+        super.onStartLoading();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        if (mListening) {
+            mStore.removeListener(this);
+            mListening = false;
+        }
+        mSnapshot = null;
+        mRowsSnapshot = null;
+        mSnapshotRows = null;
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Loader of a sorted or filtered view of the pets list, by pages (keyset pagination).
+ *
+ * The view is sorted by "column ASC, _id ASC" (a unique order, served by an index, see
+ * {@link PetEntry#SORT_BY_NAME}): the next page seeks after the last pet loaded
+ * ({@link PetEntry#buildSelectionAfter}), so a page only reads its own rows. When the pets
+ * change, the pets up to the last one loaded are read again
+ * ({@link PetEntry#buildSelectionUpTo}): the pages already displayed stay, with their changes.
+ */
+public class PetViewLoader extends AsyncTaskLoader<PetRows> {
+
+    private final String mSortColumn;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final int mPageSize;
+    private final String[] mColumns;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered = false;
+
+    // State of the pages: only changed by loadInBackground (the loads run one after the other)
+    private PetRows.ArrayRows mWindow;
+    // Sort key and ID of the last pet loaded. They stay when this pet is deleted: the next
+    // page starts after it, so no pet is read twice
+    private String mLastKey;
+    private long mLastId;
+
+    private volatile boolean mMoreRequested = false;
+    private volatile boolean mChanged = false;
+    private volatile boolean mComplete = false;
+
+    // Last rows delivered
+    private PetRows mRows;
+
+    /**
+     * @param sortColumn    {@link PetEntry#COLUMN_PET_NAME} or {@link PetEntry#COLUMN_PET_WEIGHT}
+     * @param selection     filter of the view, or null
+     * @param selectionArgs
+     * @param pageSize
+     */
+    public PetViewLoader(Context context, String sortColumn, String selection, String[] selectionArgs,
+                         int pageSize) {
+        super(context);
+        mSortColumn = sortColumn;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+        mColumns = new String[] {
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED,
+                sortColumn
+        };
+    }
+
+    /**
+     * Load the next page (no effect if the whole view is loaded, or if a page is on its way).
+     */
+    public void loadMore() {
+        if (mComplete || mMoreRequested) {
+            return;
+        }
+        mMoreRequested = true;
+        forceLoad();
+    }
+
+    @Override
+    public void onContentChanged() {
+        // Read by the next load (started now, or when the loader starts again)
+        mChanged = true;
+        super.onContentChanged();
+    }
+
+    @Override
+    public PetRows loadInBackground() {
+        ContentResolver contentResolver = getContext().getContentResolver();
+
+        if (mWindow == null) {
+            mChanged = false;
+            mWindow = new PetRows.ArrayRows(0);
+            loadPage(contentResolver);
+        } else {
+            if (mChanged) {
+                // Cleared before the read: a change during the read loads the window again
+                mChanged = false;
+                reloadWindow(contentResolver);
+            }
+            if (mMoreRequested) {
+                // Cleared after the page only, like in PetDeltaLoader
+                loadPage(contentResolver);
+                mMoreRequested = false;
+            }
+        }
+        return mWindow;
+    }
+
+    private void loadPage(ContentResolver contentResolver) {
+        if (mComplete) {
+            return;
+        }
+
+        Uri pageUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, String.valueOf(mPageSize))
+                .build();
+        String selection = mSelection;
+        String[] selectionArgs = mSelectionArgs;
+        if (mLastKey != null) {
+            selection = and(selection, PetEntry.buildSelectionAfter(mSortColumn));
+            selectionArgs = append(selectionArgs, mLastKey, mLastKey, String.valueOf(mLastId));
+        }
+
+        Cursor cursor = contentResolver.query(pageUri, mColumns, selection, selectionArgs, getSortOrder());
+        if (cursor == null) {
+            return;
+        }
+        try {
+            PetRows.ArrayRows page = PetRows.ArrayRows.copyOf(cursor);
+            if (page.count > 0 && cursor.moveToLast()) {
+                mLastKey = cursor.getString(mColumns.length - 1);
+                mLastId = page.ids[page.count - 1];
+            }
+            mWindow = mWindow.concat(page);
+            if (page.count < mPageSize) {
+                mComplete = true;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void reloadWindow(ContentResolver contentResolver) {
+        String selection = mSelection;
+        String[] selectionArgs = mSelectionArgs;
+        if (!mComplete) {
+            if (mLastKey == null) {
+                return;
+            }
+            selection = and(selection, PetEntry.buildSelectionUpTo(mSortColumn));
+            selectionArgs = append(selectionArgs, mLastKey, mLastKey, String.valueOf(mLastId));
+        }
+
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI, mColumns, selection, selectionArgs,
+                getSortOrder());
+        if (cursor == null) {
+            return;
+        }
+        try {
+            mWindow = PetRows.ArrayRows.copyOf(cursor);
+            if (mComplete && mWindow.count > 0 && cursor.moveToLast()) {
+                // The pets added at the end of a complete view are in the window now
+                mLastKey = cursor.getString(mColumns.length - 1);
+                mLastId = mWindow.ids[mWindow.count - 1];
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getSortOrder() {
+        return mSortColumn + " ASC, " + PetEntry._ID + " ASC";
+    }
+
+    private static String and(String selection, String clause) {
+        return selection == null ? clause : "(" + selection + ") AND " + clause;
+    }
+
+    private static String[] append(String[] args, String... moreArgs) {
+        if (args == null) {
+            return moreArgs;
+        }
+        String[] allArgs = new String[args.length + moreArgs.length];
+        System.arraycopy(args, 0, allArgs, 0, args.length);
+        System.arraycopy(moreArgs, 0, allArgs, args.length, moreArgs.length);
+        return allArgs;
+    }
+
+    /* ********************************************
+
+               Loader life cycle
+
+    ********************************************** */
+    @Override
+    public void deliverResult(PetRows rows) {
+        if (isReset()) {
+            return;
+        }
+        mRows = rows;
+        if (isStarted()) {
+            super.deliverResult(rows);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            // The pets URIs are notified below the CONTENT_URI
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mRows != null) {
+            deliverResult(mRows);
+        }
+        if (takeContentChanged() || mRows == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mRows = null;
+        mWindow = null;
+        mLastKey = null;
+        mComplete = false;
+        mMoreRequested = false;
+        mChanged = false;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cache of the IDs of the breeds, by case-folded key, used by the {@link PetProvider}
+ * on the write path: the breeds are a few hundred, so after a few writes each breed
+ * written is found in memory, without a query on the breeds table.
+ *
+ * The breeds are read and inserted in the write transaction of the pet: no other thread
+ * writes at the same time, and the monitor of the cache is never held during a query
+ * (a thread waiting for the connection never blocks the thread that holds it).
+ * The breeds inserted by a transaction are only kept by its thread until the end of the
+ * outermost transaction ({@link #onTransactionEnd}): they go to the cache if it is
+ * committed, and are forgotten if it is rolled back.
+ */
+public class PetBreedCache {
+    public static final String LOG_TAG = PetBreedCache.class.getSimpleName();
+
+    // IDs of the committed breeds (guarded by this)
+    private final Map<String, Long> mIds = new HashMap<>();
+
+    // Breeds inserted by the transaction of the current thread
+    private final ThreadLocal<Transaction> mTransaction = new ThreadLocal<>();
+
+    private static class Transaction {
+        final Map<String, Long> mInsertedIds = new HashMap<>();
+        // A nested transaction failed: the outermost one is rolled back
+        boolean mFailed;
+    }
+
+    /**
+     * Key of a breed: trimmed and case-folded. The upper case then the lower case folds
+     * more than the lower case alone (for example the German sharp s and "SS" both give "ss").
+     */
+    @NonNull
+    public static String toKey(@NonNull String breed) {
+        return breed.trim().toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Give the ID of the breed, and insert it in the breeds table if it's a new breed
+     * (with this spelling). Must be called in the write transaction of the pet,
+     * and {@link #onTransactionEnd} after each end of transaction.
+     *
+     * @param db    writable database, in a transaction
+     * @param breed text of the breed
+     * @return the ID of the breed, or null for no breed (null or blank)
+     */
+    @Nullable
+    public Long getId(@NonNull SQLiteDatabase db, @Nullable String breed) {
+        if (breed == null) {
+            return null;
+        }
+        String key = toKey(breed);
+        if (key.isEmpty()) {
+            return null;
+        }
+        if (!db.inTransaction()) {
+            throw new IllegalStateException("The breeds are read in the transaction of the pet");
+        }
+
+        Long id;
+        synchronized (this) {
+            id = mIds.get(key);
+        }
+        if (id != null) {
+            return id;
+        }
+
+        Transaction transaction = getTransaction();
+        id = transaction.mInsertedIds.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        try {
+            id = DatabaseUtils.longForQuery(db,
+                    "SELECT " + BaseColumns._ID + " FROM " + PetDbHelper.BREEDS_TABLE_NAME
+                    + " WHERE " + PetDbHelper.COLUMN_BREED_KEY + " = ?",
+                    new String[] {key});
+            // Not inserted by this transaction: committed before it
+            synchronized (this) {
+                mIds.put(key, id);
+            }
+        } catch (SQLiteDoneException e) {
+            // New breed
+            SQLiteStatement insertBreed = db.compileStatement("INSERT INTO " + PetDbHelper.BREEDS_TABLE_NAME + "("
+                    + PetEntry.COLUMN_PET_BREED + ", " + PetDbHelper.COLUMN_BREED_KEY + ") VALUES (?, ?)");
+            try {
+                insertBreed.bindString(1, breed.trim());
+                insertBreed.bindString(2, key);
+                id = insertBreed.executeInsert();
+            } finally {
+                insertBreed.close();
+            }
+            transaction.mInsertedIds.put(key, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Called after each end of a write transaction of the current thread (nested or not).
+     * At the end of the outermost transaction, the breeds it inserted go to the cache
+     * if it is committed.
+     *
+     * @param db         database of the transaction
+     * @param successful false if the transaction was not marked successful (or failed to end)
+     */
+    public void onTransactionEnd(@NonNull SQLiteDatabase db, boolean successful) {
+        Transaction transaction = mTransaction.get();
+        if (!successful) {
+            transaction = getTransaction();
+            transaction.mFailed = true;
+        }
+        if (transaction == null || db.inTransaction()) {
+            return;
+        }
+
+        mTransaction.remove();
+        if (!transaction.mFailed) {
+            synchronized (this) {
+                mIds.putAll(transaction.mInsertedIds);
+            }
+        }
+    }
+
+    public synchronized int getSize() {
+        return mIds.size();
+    }
+
+    private Transaction getTransaction() {
+        Transaction transaction = mTransaction.get();
+        if (transaction == null) {
+            transaction = new Transaction();
+            mTransaction.set(transaction);
+        }
+        return transaction;
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the change notifications sent by the {@link PetProvider}.
+ *
+ * The URIs received during the coalescing window are de-duplicated and sent together
+ * at the end of the window. When too many pet URIs changed in the same window,
+ * they are merged into a single notification on {@link PetEntry#CONTENT_URI}.
+ */
+public class PetChangeDispatcher {
+    public static final String LOG_TAG = PetChangeDispatcher.class.getSimpleName();
+
+    // Default coalescing window (ms)
+    public static final long DEFAULT_COALESCING_WINDOW = 100;
+
+    // Default number of pet URIs above which they are merged into the CONTENT_URI
+    public static final int DEFAULT_MERGE_THRESHOLD = 8;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler;
+
+    private volatile long mCoalescingWindow;
+    private volatile int mMergeThreshold;
+
+    // URIs waiting for the end of the coalescing window (guarded by mPendingUris)
+    private final Set<Uri> mPendingUris = new LinkedHashSet<>();
+    private boolean mFlushScheduled = false;
+
+    // Counters
+    private final AtomicLong mNbRequested = new AtomicLong();
+    private final AtomicLong mNbDispatched = new AtomicLong();
+    private final AtomicLong mNbSuppressed = new AtomicLong();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public PetChangeDispatcher(@NonNull ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_COALESCING_WINDOW, DEFAULT_MERGE_THRESHOLD);
+    }
+
+    public PetChangeDispatcher(@NonNull ContentResolver contentResolver,
+                               long coalescingWindow,
+                               int mergeThreshold) {
+        mContentResolver = contentResolver;
+        mCoalescingWindow = coalescingWindow;
+        mMergeThreshold = mergeThreshold;
+
+        HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Queue a change notification. It is sent at the end of the current coalescing window.
+     * Must only be called once the change is committed.
+     *
+     * @param uri
+     */
+    public void dispatch(@NonNull Uri uri) {
+        mNbRequested.incrementAndGet();
+
+        synchronized (mPendingUris) {
+            if (!mPendingUris.add(uri)) {
+                // Already waiting in this window
+                mNbSuppressed.incrementAndGet();
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mCoalescingWindow);
+            }
+        }
+    }
+
+    /**
+     * Send the pending notifications and stop the dispatcher thread.
+     * The notifications dispatched after this are lost.
+     */
+    public void quit() {
+        flush();
+        mHandler.getLooper().quitSafely();
+    }
+
+    /**
+     * Send right now all the pending notifications.
+     */
+    public void flush() {
+        List<Uri> uris;
+        synchronized (mPendingUris) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            if (mPendingUris.isEmpty()) {
+                return;
+            }
+            uris = coalesce(mPendingUris);
+            mNbSuppressed.addAndGet(mPendingUris.size() - uris.size());
+            mPendingUris.clear();
+        }
+
+        for (Uri uri : uris) {
+            mContentResolver.notifyChange(uri, null);
+        }
+        mNbDispatched.addAndGet(uris.size());
+    }
+
+    /**
+     * The observers of the CONTENT_URI are also notified for the pet URIs below it:
+     * if the CONTENT_URI has to be notified (or if too many pets changed), the pet URIs
+     * are dropped.
+     */
+    private List<Uri> coalesce(Set<Uri> pendingUris) {
+        List<Uri> uris = new ArrayList<>(pendingUris.size());
+        int nbPetUris = 0;
+        boolean notifyAllPets = false;
+
+        for (Uri uri : pendingUris) {
+            if (isPetUri(uri)) {
+                nbPetUris++;
+            } else if (PetEntry.CONTENT_URI.equals(uri)) {
+                notifyAllPets = true;
+            }
+        }
+        if (nbPetUris > mMergeThreshold) {
+            notifyAllPets = true;
+        }
+
+        if (notifyAllPets) {
+            uris.add(PetEntry.CONTENT_URI);
+        }
+        for (Uri uri : pendingUris) {
+            if (PetEntry.CONTENT_URI.equals(uri)) {
+                continue;
+            }
+            if (notifyAllPets && isPetUri(uri)) {
+                continue;
+            }
+            uris.add(uri);
+        }
+
+        return uris;
+    }
+
+    private boolean isPetUri(Uri uri) {
+        return PetProvider.sUriMatcher.match(uri) == PetProvider.URI_MATCHER_PET_ID;
+    }
+
+    /* ********************************************
+
+               Settings and counters
+
+    ********************************************** */
+    public long getCoalescingWindow() {
+        return mCoalescingWindow;
+    }
+
+    public void setCoalescingWindow(long coalescingWindow) {
+        mCoalescingWindow = coalescingWindow;
+    }
+
+    public int getMergeThreshold() {
+        return mMergeThreshold;
+    }
+
+    public void setMergeThreshold(int mergeThreshold) {
+        mMergeThreshold = mergeThreshold;
+    }
+
+    // Number of notifications asked by the provider
+    public long getNbRequested() {
+        return mNbRequested.get();
+    }
+
+    // Number of notifications really sent to the ContentResolver
+    public long getNbDispatched() {
+        return mNbDispatched.get();
+    }
+
+    // Number of notifications saved by the coalescing
+    public long getNbSuppressed() {
+        return mNbSuppressed.get();
+    }
+
+    public void resetCounters() {
+        mNbRequested.set(0);
+        mNbDispatched.set(0);
+        mNbSuppressed.set(0);
+    }
+}
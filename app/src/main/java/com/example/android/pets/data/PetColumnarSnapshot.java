@@ -0,0 +1,317 @@
+package com.example.android.pets.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only copy of the pets table in memory, by columns, sorted by ID.
+ *
+ * The IDs, the genders and the weights are arrays of primitives; the breeds are encoded
+ * in a dictionary (each pet keeps the code of its breed). A pet is designated by its
+ * position in the copy.
+ *
+ * The filters, the sort and the counts don't allocate anything by pet: the caller gives
+ * the arrays of the results, and can use them again for the next filter. So filtering on
+ * each keystroke costs a loop on a few arrays, with no SQLite query and no CursorWindow.
+ *
+ * A snapshot never changes: {@link PetSnapshotStore} makes a new one after each change.
+ */
+public final class PetColumnarSnapshot {
+
+    // Any value of a filter (gender or breed)
+    public static final int ANY = -1;
+    // Code of the pets without breed
+    public static final int NO_BREED = -1;
+    // Number of genders: their values are 0 to NB_GENDERS - 1
+    public static final int NB_GENDERS = 3;
+
+    public static final PetColumnarSnapshot EMPTY = new Builder(0, new String[0]).build();
+
+    private final int mCount;
+    private final long[] mIds;
+    private final String[] mNames;
+    private final int[] mGenders;
+    private final int[] mWeights;
+    private final int[] mBreedCodes;
+    // Dictionary of the breeds: the code of a breed is its index
+    private final String[] mBreeds;
+
+    private PetColumnarSnapshot(Builder builder) {
+        mCount = builder.mCount;
+        mIds = builder.mIds;
+        mNames = builder.mNames;
+        mGenders = builder.mGenders;
+        mWeights = builder.mWeights;
+        mBreedCodes = builder.mBreedCodes;
+        mBreeds = builder.mBreeds.toArray(new String[builder.mBreeds.size()]);
+    }
+
+    /**
+     * Criteria of a filter: a gender, a range of weight (inclusive) and a breed.
+     */
+    public static class Filter {
+        int gender = ANY;
+        int minWeight = Integer.MIN_VALUE;
+        int maxWeight = Integer.MAX_VALUE;
+        int breed = ANY;
+
+        public Filter setGender(int gender) {
+            this.gender = gender;
+            return this;
+        }
+
+        public Filter setWeightRange(int minWeight, int maxWeight) {
+            this.minWeight = minWeight;
+            this.maxWeight = maxWeight;
+            return this;
+        }
+
+        /**
+         * @param breed code of the breed ({@link PetColumnarSnapshot#findBreed(String)}), or {@link #ANY}
+         */
+        public Filter setBreed(int breed) {
+            this.breed = breed;
+            return this;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    public int getGender(int position) {
+        return mGenders[position];
+    }
+
+    public int getWeight(int position) {
+        return mWeights[position];
+    }
+
+    public int getBreedCode(int position) {
+        return mBreedCodes[position];
+    }
+
+    @Nullable
+    public String getBreed(int position) {
+        int code = mBreedCodes[position];
+        return code == NO_BREED ? null : mBreeds[code];
+    }
+
+    public int getNbBreeds() {
+        return mBreeds.length;
+    }
+
+    public String getBreedName(int code) {
+        return mBreeds[code];
+    }
+
+    /**
+     * @return the code of the breed, or {@link #NO_BREED} if no pet has this breed
+     */
+    public int findBreed(@Nullable String breed) {
+        if (breed == null) {
+            return NO_BREED;
+        }
+        for (int code = 0; code < mBreeds.length; code++) {
+            if (mBreeds[code].equals(breed)) {
+                return code;
+            }
+        }
+        return NO_BREED;
+    }
+
+    /**
+     * @return the position of the pet, or -1 if it's not in the copy
+     */
+    public int findId(long id) {
+        int position = Arrays.binarySearch(mIds, 0, mCount, id);
+        return position < 0 ? -1 : position;
+    }
+
+    /* ********************************************
+
+               Filters, sort and counts
+
+    ********************************************** */
+
+    /**
+     * Write the positions of the pets matching the filter, sorted by ID.
+     *
+     * @param filter
+     * @param positions array of the results, at least {@link #getCount()} long
+     * @return the number of positions written
+     */
+    public int filter(@NonNull Filter filter, @NonNull int[] positions) {
+        int nbMatching = 0;
+        for (int position = 0; position < mCount; position++) {
+            if (matches(position, filter)) {
+                positions[nbMatching++] = position;
+            }
+        }
+        return nbMatching;
+    }
+
+    public int count(@NonNull Filter filter) {
+        int nbMatching = 0;
+        for (int position = 0; position < mCount; position++) {
+            if (matches(position, filter)) {
+                nbMatching++;
+            }
+        }
+        return nbMatching;
+    }
+
+    public long sumWeights(@NonNull Filter filter) {
+        long sum = 0;
+        for (int position = 0; position < mCount; position++) {
+            if (matches(position, filter)) {
+                sum += mWeights[position];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Count the pets of the filter by gender.
+     *
+     * @param counts array of the results, at least {@link #NB_GENDERS} long
+     */
+    public void countByGender(@NonNull Filter filter, @NonNull int[] counts) {
+        Arrays.fill(counts, 0, NB_GENDERS, 0);
+        for (int position = 0; position < mCount; position++) {
+            if (matches(position, filter)) {
+                counts[mGenders[position]]++;
+            }
+        }
+    }
+
+    /**
+     * Count the pets of the filter by breed (the pets without breed are not counted).
+     *
+     * @param counts array of the results by code, at least {@link #getNbBreeds()} long
+     */
+    public void countByBreed(@NonNull Filter filter, @NonNull int[] counts) {
+        Arrays.fill(counts, 0, mBreeds.length, 0);
+        for (int position = 0; position < mCount; position++) {
+            if (mBreedCodes[position] != NO_BREED && matches(position, filter)) {
+                counts[mBreedCodes[position]]++;
+            }
+        }
+    }
+
+    /**
+     * Sort positions by weight (the pets of the same weight stay sorted by position).
+     * Each position is packed with its weight in a long: the sort is a sort of primitives.
+     *
+     * @param positions   positions to sort, for example the result of {@link #filter}
+     * @param nbPositions number of positions to sort
+     * @param scratch     work array, at least nbPositions long
+     */
+    public void sortByWeight(@NonNull int[] positions, int nbPositions, @NonNull long[] scratch) {
+        for (int i = 0; i < nbPositions; i++) {
+            // The weight in the high bits gives the order, the position (>= 0) breaks the ties
+            scratch[i] = ((long) mWeights[positions[i]] << 32) | positions[i];
+        }
+        Arrays.sort(scratch, 0, nbPositions);
+        for (int i = 0; i < nbPositions; i++) {
+            positions[i] = (int) scratch[i];
+        }
+    }
+
+    private boolean matches(int position, Filter filter) {
+        return (filter.gender == ANY || mGenders[position] == filter.gender)
+                && mWeights[position] >= filter.minWeight
+                && mWeights[position] <= filter.maxWeight
+                && (filter.breed == ANY || mBreedCodes[position] == filter.breed);
+    }
+
+    /* ********************************************
+
+               Builder
+
+    ********************************************** */
+
+    /**
+     * Builder of a snapshot, pet by pet in the order of the IDs, or by ranges of a previous
+     * snapshot. The breeds of a previous snapshot keep their code.
+     */
+    static class Builder {
+        private int mCount = 0;
+        private long[] mIds;
+        private String[] mNames;
+        private int[] mGenders;
+        private int[] mWeights;
+        private int[] mBreedCodes;
+        private final List<String> mBreeds;
+        private final Map<String, Integer> mBreedDictionary = new HashMap<>();
+
+        /**
+         * @param capacity max number of pets
+         * @param breeds   dictionary to start from (the one of the previous snapshot)
+         */
+        Builder(int capacity, String[] breeds) {
+            mIds = new long[capacity];
+            mNames = new String[capacity];
+            mGenders = new int[capacity];
+            mWeights = new int[capacity];
+            mBreedCodes = new int[capacity];
+            mBreeds = new ArrayList<>(Arrays.asList(breeds));
+            for (int code = 0; code < breeds.length; code++) {
+                mBreedDictionary.put(breeds[code], code);
+            }
+        }
+
+        Builder add(long id, String name, String breed, int gender, int weight) {
+            mIds[mCount] = id;
+            mNames[mCount] = name;
+            mGenders[mCount] = gender >= 0 && gender < NB_GENDERS ? gender : PetEntry.GENDER_UNKNOWN;
+            mWeights[mCount] = weight;
+            mBreedCodes[mCount] = encodeBreed(breed);
+            mCount++;
+            return this;
+        }
+
+        Builder copy(PetColumnarSnapshot from, int fromPosition, int length) {
+            System.arraycopy(from.mIds, fromPosition, mIds, mCount, length);
+            System.arraycopy(from.mNames, fromPosition, mNames, mCount, length);
+            System.arraycopy(from.mGenders, fromPosition, mGenders, mCount, length);
+            System.arraycopy(from.mWeights, fromPosition, mWeights, mCount, length);
+            System.arraycopy(from.mBreedCodes, fromPosition, mBreedCodes, mCount, length);
+            mCount += length;
+            return this;
+        }
+
+        PetColumnarSnapshot build() {
+            return new PetColumnarSnapshot(this);
+        }
+
+        private int encodeBreed(String breed) {
+            if (breed == null || breed.isEmpty()) {
+                return NO_BREED;
+            }
+            Integer code = mBreedDictionary.get(breed);
+            if (code == null) {
+                code = mBreeds.size();
+                mBreeds.add(breed);
+                mBreedDictionary.put(breed, code);
+            }
+            return code;
+        }
+    }
+}
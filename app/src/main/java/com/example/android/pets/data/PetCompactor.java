@@ -0,0 +1,159 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Purges the tombstones of the pets table (the pets deleted by the provider in tombstone
+ * mode, see {@link PetDbHelper#COLUMN_PET_DELETED}).
+ *
+ * The compaction starts when no pet was deleted during the idle delay, and purges the
+ * tombstones by batches, one transaction by batch: the writes of the app take the lock
+ * between two batches. A new delete during the compaction stops it until the app is
+ * idle again.
+ *
+ * The triggers ignore the tombstones: a purge doesn't touch the FTS table, the statistics
+ * or the log of the changes. The pages freed go to the free list of the file (they are
+ * given back to the file system by a VACUUM).
+ */
+public class PetCompactor {
+    public static final String LOG_TAG = PetCompactor.class.getSimpleName();
+
+    private static final String SQL_PURGE_BATCH =
+            "DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " IN ("
+            + "SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetDbHelper.SELECTION_TOMBSTONES + " LIMIT ?)";
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final int mBatchSize;
+    private final long mIdleDelay;
+    private final Handler mHandler;
+
+    // Totals since the start of the provider (guarded by this)
+    private long mNbBatches;
+    private long mNbPurged;
+    private long mNbFreedPages;
+    private long mTotalTime;
+
+    private final Runnable mBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (purgeBatch() == mBatchSize) {
+                // Maybe more: the next batch after the messages already waiting
+                mHandler.post(mBatchRunnable);
+            }
+        }
+    };
+
+    /**
+     * @param dbHelper  helper of the pets database
+     * @param batchSize number of tombstones purged by transaction
+     * @param idleDelay time (ms) without delete before the compaction starts
+     */
+    public PetCompactor(@NonNull SQLiteOpenHelper dbHelper, int batchSize, long idleDelay) {
+        mDbHelper = dbHelper;
+        mBatchSize = batchSize;
+        mIdleDelay = idleDelay;
+
+        HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Some pets became tombstones: the compaction waits for the app to be idle again.
+     * Also called at the start, for the tombstones of the last process.
+     */
+    public void onTombstones() {
+        mHandler.removeCallbacks(mBatchRunnable);
+        mHandler.postDelayed(mBatchRunnable, mIdleDelay);
+    }
+
+    /**
+     * Purge all the tombstones now, on the calling thread (still by batches).
+     *
+     * @return the number of tombstones purged
+     */
+    public int compactNow() {
+        mHandler.removeCallbacks(mBatchRunnable);
+        int nbPurged = 0;
+        int nbInBatch;
+        do {
+            nbInBatch = purgeBatch();
+            nbPurged += nbInBatch;
+        } while (nbInBatch == mBatchSize);
+        return nbPurged;
+    }
+
+    public void quit() {
+        mHandler.getLooper().quitSafely();
+    }
+
+    /**
+     * @return the totals of the compactions ({@link PetContract#METHOD_COMPACTION_STATS})
+     */
+    @NonNull
+    public Bundle getStats() {
+        long nbTombstones = DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME + " WHERE " + PetDbHelper.SELECTION_TOMBSTONES, null);
+        long pageSize = DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(), "PRAGMA page_size", null);
+
+        Bundle stats = new Bundle();
+        synchronized (this) {
+            stats.putLong(PetContract.KEY_COMPACTION_TOMBSTONES, nbTombstones);
+            stats.putLong(PetContract.KEY_COMPACTION_BATCHES, mNbBatches);
+            stats.putLong(PetContract.KEY_COMPACTION_PURGED, mNbPurged);
+            stats.putLong(PetContract.KEY_COMPACTION_FREED_BYTES, mNbFreedPages * pageSize);
+            stats.putLong(PetContract.KEY_COMPACTION_TIME, mTotalTime);
+        }
+        return stats;
+    }
+
+    /**
+     * Purge one batch of tombstones, in its own transaction.
+     * The batches of the compactor thread and of {@link #compactNow()} don't overlap.
+     *
+     * @return the number of tombstones purged
+     */
+    private synchronized int purgeBatch() {
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long freePagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+
+        int nbPurged;
+        SQLiteStatement purge = db.compileStatement(SQL_PURGE_BATCH);
+        db.beginTransaction();
+        try {
+            purge.bindLong(1, mBatchSize);
+            nbPurged = purge.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            purge.close();
+        }
+        if (nbPurged == 0) {
+            return 0;
+        }
+
+        long nbFreedPages = Math.max(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) - freePagesBefore);
+        long duration = SystemClock.elapsedRealtime() - start;
+        mNbBatches++;
+        mNbPurged += nbPurged;
+        mNbFreedPages += nbFreedPages;
+        mTotalTime += duration;
+
+        Log.d(LOG_TAG, nbPurged + " tombstones purged in " + duration + " ms, "
+                + nbFreedPages + " pages freed");
+        return nbPurged;
+    }
+}
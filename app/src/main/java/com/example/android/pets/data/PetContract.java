@@ -11,6 +11,116 @@ public final class PetContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.pets";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PETS = "pets";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_COUNT = "count";
+    public static final String PATH_BREEDS = "breeds";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_SEQUENCE = "sequence";
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call}.
+     * {@link #METHOD_ROW_CACHE_STATS} gives the counters of the single pet cache.
+     */
+    public static final String METHOD_ROW_CACHE_STATS = "row_cache_stats";
+    public static final String KEY_CACHE_HITS = "hits";
+    public static final String KEY_CACHE_MISSES = "misses";
+    public static final String KEY_CACHE_SIZE = "size";
+    public static final String KEY_CACHE_MAX_SIZE = "max_size";
+
+    /**
+     * {@link #METHOD_METRICS} gives the latencies and rows of the provider operations:
+     * one Bundle by "operation/URI match code" (for example "query/101"), plus
+     * {@link #KEY_METRICS_ROW_CACHE}, {@link #KEY_METRICS_STATEMENT_CACHE} (compiled statements
+     * of the writes, same counters as the row cache) and {@link #KEY_METRICS_NOTIFICATIONS}.
+     * The times are in microseconds. {@link #METHOD_RESET_METRICS} sets them to 0, with the hits
+     * and misses of the two caches and the counters of the notifications.
+     */
+    public static final String METHOD_METRICS = "metrics";
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+    public static final String KEY_METRICS_COUNT = "count";
+    public static final String KEY_METRICS_ERRORS = "errors";
+    public static final String KEY_METRICS_ROWS = "rows";
+    public static final String KEY_METRICS_REJECTED_ROWS = "rejected_rows";
+    public static final String KEY_METRICS_TOTAL_TIME = "total_us";
+    public static final String KEY_METRICS_MEAN_TIME = "mean_us";
+    public static final String KEY_METRICS_MAX_TIME = "max_us";
+    public static final String KEY_METRICS_P50_TIME = "p50_us";
+    public static final String KEY_METRICS_P90_TIME = "p90_us";
+    public static final String KEY_METRICS_P99_TIME = "p99_us";
+    public static final String KEY_METRICS_ROW_CACHE = "row_cache";
+    public static final String KEY_METRICS_STATEMENT_CACHE = "statement_cache";
+    public static final String KEY_METRICS_NOTIFICATIONS = "notifications";
+    public static final String KEY_NOTIFICATIONS_REQUESTED = "requested";
+    public static final String KEY_NOTIFICATIONS_DISPATCHED = "dispatched";
+    public static final String KEY_NOTIFICATIONS_SUPPRESSED = "suppressed";
+
+    /**
+     * {@link #METHOD_SLOW_QUERIES} gives the slow query log: {@link #KEY_SLOW_QUERIES} (one text
+     * by statement, with its query plan) and {@link #KEY_SLOW_QUERY_THRESHOLD} (ms).
+     * {@link #METHOD_SET_SLOW_QUERY_THRESHOLD} changes the threshold (the arg, in ms).
+     * The log is also written by "adb shell dumpsys activity provider".
+     */
+    public static final String METHOD_SLOW_QUERIES = "slow_queries";
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+    public static final String KEY_SLOW_QUERY_THRESHOLD = "threshold_ms";
+
+    /**
+     * {@link #METHOD_BULK_INSERT} inserts the pets of {@link #KEY_BULK_INSERT_VALUES}
+     * (a ContentValues array) like {@link android.content.ContentResolver#bulkInsert},
+     * and gives the number of pets inserted ({@link #KEY_ROWS_ACCEPTED}) and of the
+     * invalid ones, skipped ({@link #KEY_ROWS_REJECTED}).
+     */
+    public static final String METHOD_BULK_INSERT = "bulk_insert";
+    public static final String KEY_BULK_INSERT_VALUES = "values";
+    public static final String KEY_ROWS_ACCEPTED = "accepted";
+    public static final String KEY_ROWS_REJECTED = "rejected";
+
+    /**
+     * {@link #METHOD_UNDO_CLEAR_PETS} puts back the pets deleted by the last delete of all
+     * the pets (a delete of {@link PetEntry#CONTENT_URI} without selection), during a short
+     * window after it. {@link #KEY_PETS_RESTORED} is the number of pets put back
+     * (0 when the window is closed).
+     */
+    public static final String METHOD_UNDO_CLEAR_PETS = "undo_clear_pets";
+    public static final String KEY_PETS_RESTORED = "restored";
+
+    /**
+     * {@link #METHOD_COMPACTION_STATS} gives the tombstones waiting ({@link #KEY_COMPACTION_TOMBSTONES})
+     * and the totals of the compactions since the start of the provider: batches, tombstones
+     * purged, bytes freed in the file and time spent (ms).
+     * {@link #METHOD_COMPACT_TOMBSTONES} purges all the tombstones now, and gives the same stats.
+     */
+    public static final String METHOD_COMPACTION_STATS = "compaction_stats";
+    public static final String METHOD_COMPACT_TOMBSTONES = "compact_tombstones";
+    public static final String KEY_COMPACTION_TOMBSTONES = "tombstones";
+    public static final String KEY_COMPACTION_BATCHES = "batches";
+    public static final String KEY_COMPACTION_PURGED = "purged";
+    public static final String KEY_COMPACTION_FREED_BYTES = "freed_bytes";
+    public static final String KEY_COMPACTION_TIME = "time_ms";
+
+    /**
+     * {@link #METHOD_RUN_MAINTENANCE} runs one slice of the maintenance of the database
+     * (ANALYZE, PRAGMA optimize, incremental vacuum): {@link #KEY_MAINTENANCE_DONE} is true
+     * once it is finished. {@link #METHOD_MAINTENANCE_STATS} gives the rows written since
+     * the last maintenance, the threshold, and the report of the last maintenance:
+     * its date, the sizes of the file before and after (bytes), the time of each step (ms)
+     * and the pages given back to the file system.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+    public static final String METHOD_MAINTENANCE_STATS = "maintenance_stats";
+    public static final String KEY_MAINTENANCE_DONE = "done";
+    public static final String KEY_MAINTENANCE_ROWS_WRITTEN = "rows_written";
+    public static final String KEY_MAINTENANCE_WRITE_THRESHOLD = "write_threshold";
+    public static final String KEY_MAINTENANCE_LAST_RUN = "last_run";
+    public static final String KEY_MAINTENANCE_SIZE_BEFORE = "size_before";
+    public static final String KEY_MAINTENANCE_SIZE_AFTER = "size_after";
+    public static final String KEY_MAINTENANCE_ANALYZE_TIME = "analyze_ms";
+    public static final String KEY_MAINTENANCE_OPTIMIZE_TIME = "optimize_ms";
+    public static final String KEY_MAINTENANCE_VACUUM_TIME = "vacuum_ms";
+    public static final String KEY_MAINTENANCE_PAGES_VACUUMED = "pages_vacuumed";
 
     public static final class PetEntry implements BaseColumns {
 
@@ -30,6 +140,93 @@ public final class PetContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
 
+        /**
+         * Export of all the pets, streamed through
+         * {@link ContentResolver#openInputStream} (CSV) or
+         * {@link ContentResolver#openTypedAssetFileDescriptor} ({@link #EXPORT_TYPE_CSV}
+         * or {@link #EXPORT_TYPE_JSON}).
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+        public static final String EXPORT_TYPE_CSV = "text/csv";
+        public static final String EXPORT_TYPE_JSON = "application/json";
+
+        /**
+         * Keyset pagination of the {@link #CONTENT_URI}.
+         * {@link #QUERY_PARAMETER_LIMIT} gives the size of the page, and
+         * {@link #QUERY_PARAMETER_AFTER} the last {@link #_ID} of the previous page.
+         * A paginated query is sorted by {@link #_ID}. Without {@link #QUERY_PARAMETER_AFTER},
+         * the limit can also cut a query with its own sort order (first page only).
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Build the Uri of the page of pets that follows the pet afterId.
+         *
+         * @param afterId last ID of the previous page (0 for the first page)
+         * @param pageSize max number of pets in the page
+         * @return
+         */
+        public static Uri buildPageUri(long afterId, int pageSize) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(pageSize))
+                    .build();
+        }
+
+        /**
+         * Build the Uri of a full-text search on the name and the breed of the pets.
+         * Each word of the query is matched as a prefix; the pets whose name matches come first.
+         * The {@link #QUERY_PARAMETER_LIMIT} parameter can be appended to this Uri.
+         *
+         * @param query words typed by the user
+         * @return
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendPath(query)
+                    .build();
+        }
+
+        /**
+         * Sort orders and selections served by the indexes of the pets table:
+         * - {@link #SORT_BY_NAME}: covering index of the list columns (name, _id, breed),
+         * - {@link #SELECTION_GENDER} (optionally with {@link #SELECTION_WEIGHT_RANGE})
+         *   and {@link #SORT_BY_WEIGHT}: index on gender then weight,
+         * - {@link #SELECTION_WEIGHT_RANGE} and/or {@link #SORT_BY_WEIGHT} without gender:
+         *   index on weight.
+         * Each sort order ends with the ID, so the order is unique and the pages of a sorted
+         * view are read by keyset (see {@link #buildSelectionAfter}).
+         * The other shapes can scan the whole table.
+         */
+        public static final String SORT_BY_NAME = "name ASC, _id ASC";
+        public static final String SORT_BY_WEIGHT = "weight ASC, _id ASC";
+        public static final String SELECTION_GENDER = "gender=?";
+        public static final String SELECTION_WEIGHT_RANGE = "weight BETWEEN ? AND ?";
+
+        /**
+         * Keyset pagination of a view sorted by "column ASC, _id ASC": the pets after the
+         * last pet of the previous page. The arguments are the value of the column of that
+         * pet, the same value again, then its ID. The index of the column seeks to the value:
+         * a page costs its own rows, not the rows of the pages before it.
+         *
+         * @param column {@link #COLUMN_PET_NAME} or {@link #COLUMN_PET_WEIGHT}
+         */
+        public static String buildSelectionAfter(String column) {
+            return column + ">=? AND (" + column + ">? OR " + _ID + ">?)";
+        }
+
+        /**
+         * The pets up to a pet (included), in the order of "column ASC, _id ASC": the pages
+         * already loaded of a view, read again after a change. Same arguments as
+         * {@link #buildSelectionAfter}.
+         */
+        public static String buildSelectionUpTo(String column) {
+            return column + "<=? AND (" + column + "<? OR " + _ID + "<=?)";
+        }
+
+
         // Table
         public static final String TABLE_NAME = "pets";
 
@@ -81,4 +278,154 @@ public final class PetContract {
 
 
     }
+
+    /**
+     * Aggregate statistics of the pets. They are maintained by triggers on each write,
+     * so reading them doesn't depend on the number of pets.
+     */
+    public static final class PetStatsEntry implements BaseColumns {
+
+        /**
+         * One row with the {@link #COLUMN_TOTAL_WEIGHT}, {@link #COLUMN_AVERAGE_WEIGHT}
+         * and the count of pets by gender.
+         */
+        public static final Uri STATS_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * One row with the number of pets in the {@link #_COUNT} column.
+         */
+        public static final Uri COUNT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_COUNT);
+
+        /**
+         * One row per breed: {@link #COLUMN_BREED} and the number of pets in {@link #_COUNT},
+         * sorted by decreasing count.
+         */
+        public static final Uri BREEDS_URI = Uri.withAppendedPath(STATS_URI, PATH_BREEDS);
+
+        /**
+         * The MIME types of the statistics.
+         */
+        public static final String CONTENT_STATS_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+        public static final String CONTENT_COUNT_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_COUNT;
+        public static final String CONTENT_BREEDS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BREEDS;
+
+        // Columns
+        /**
+         * Number of pets (in total, or for a breed).
+         *
+         * Type: INTEGER
+         */
+        public static final String _COUNT = BaseColumns._COUNT;
+
+        /**
+         * Total weight of the pets.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+
+        /**
+         * Average weight of the pets (0 when there is no pet).
+         *
+         * Type: REAL
+         */
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";
+
+        /**
+         * Number of pets of each gender.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_COUNT_MALE = "count_male";
+        public static final String COLUMN_COUNT_FEMALE = "count_female";
+        public static final String COLUMN_COUNT_UNKNOWN = "count_unknown";
+
+        /**
+         * Breed (null for the pets without breed).
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_BREED = PetEntry.COLUMN_PET_BREED;
+    }
+
+    /**
+     * Log of the changes of the pets table, to refresh a copy of the pets with only the
+     * pets changed since the last refresh. Each insert, update or delete of a pet gets
+     * a new sequence number, always increasing.
+     *
+     * The log only keeps the last changes: when {@link #COLUMN_FIRST_SEQUENCE} is above
+     * the last sequence read + 1, changes were lost and the copy must be read again.
+     */
+    public static final class PetChangesEntry implements BaseColumns {
+
+        /**
+         * One row by pet changed since the sequence {@link #QUERY_PARAMETER_SINCE}, sorted by
+         * {@link #COLUMN_SEQUENCE}, with the current values of the pet
+         * (null values and {@link #COLUMN_DELETED} = 1 for a deleted pet).
+         */
+        public static final Uri CHANGES_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * One row with {@link #COLUMN_FIRST_SEQUENCE} and {@link #COLUMN_LAST_SEQUENCE}.
+         */
+        public static final Uri SEQUENCE_URI = Uri.withAppendedPath(CHANGES_URI, PATH_SEQUENCE);
+
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /**
+         * The MIME types of the changes.
+         */
+        public static final String CONTENT_CHANGES_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+        public static final String CONTENT_SEQUENCE_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SEQUENCE;
+
+        /**
+         * Build the Uri of the pets changed after the sequence.
+         *
+         * @param sinceSequence last sequence already read (0 for all the changes kept)
+         * @return
+         */
+        public static Uri buildChangesUri(long sinceSequence) {
+            return CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(sinceSequence))
+                    .build();
+        }
+
+        // Table
+        public static final String TABLE_NAME = "pet_changes";
+
+        // Columns
+        /**
+         * ID of the pet changed.
+         *
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Sequence number of the last change of the pet.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SEQUENCE = "seq";
+
+        /**
+         * 1 if the pet is deleted, 0 otherwise.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DELETED = "deleted";
+
+        /**
+         * Oldest and newest sequence numbers kept in the log (0 if there is no change).
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_FIRST_SEQUENCE = "first_seq";
+        public static final String COLUMN_LAST_SEQUENCE = "last_seq";
+    }
 }
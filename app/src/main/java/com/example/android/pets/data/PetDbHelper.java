@@ -1,17 +1,30 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.PetChangesEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class PetDbHelper extends SQLiteOpenHelper {
     public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 9;
     public static final String DATABASE_NAME = "dbshelter.db";
 
     public static final String SQL_CREATE_ENTRIES =
@@ -22,8 +35,504 @@ public class PetDbHelper extends SQLiteOpenHelper {
             + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
             + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
 
+    /**
+     * Dictionary of the breeds (version 6): a pet only keeps the ID of its breed.
+     * breed_key is the breed case-folded ({@link PetBreedCache#toKey}): the spellings
+     * of a breed that differ only by the case are the same breed, and the first spelling
+     * met is the one displayed.
+     */
+    public static final String BREEDS_TABLE_NAME = "breeds";
+    public static final String COLUMN_BREED_KEY = "breed_key";
+    public static final String COLUMN_PET_BREED_ID = "breed_id";
+
+    public static final String SQL_CREATE_BREEDS =
+            "CREATE TABLE " + BREEDS_TABLE_NAME + "("
+            + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + PetEntry.COLUMN_PET_BREED + " TEXT NOT NULL, "
+            + COLUMN_BREED_KEY + " TEXT NOT NULL UNIQUE);";
+
+    private static final String SQL_CREATE_PETS_V6 =
+            "CREATE TABLE %s("
+            + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+            + COLUMN_PET_BREED_ID + " INTEGER REFERENCES " + BREEDS_TABLE_NAME + "(" + BaseColumns._ID + "), "
+            + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+            + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+
+    /**
+     * Tombstones (version 7): a deleted pet can stay in the pets table with deleted = 1,
+     * until {@link PetCompactor} purges it. The view, the FTS table, the statistics
+     * and the indexes only see the live pets.
+     */
+    public static final String COLUMN_PET_DELETED = "deleted";
+    public static final String SELECTION_LIVE = COLUMN_PET_DELETED + " = 0";
+    public static final String SELECTION_TOMBSTONES = COLUMN_PET_DELETED + " != 0";
+
+    private static final String SQL_ADD_DELETED_COLUMN =
+            "ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+            + COLUMN_PET_DELETED + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String SQL_CREATE_PETS =
+            "CREATE TABLE " + PetEntry.TABLE_NAME + "("
+            + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+            + COLUMN_PET_BREED_ID + " INTEGER REFERENCES " + BREEDS_TABLE_NAME + "(" + BaseColumns._ID + "), "
+            + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+            + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_PET_DELETED + " INTEGER NOT NULL DEFAULT 0);";
+
+    /**
+     * The pets with the text of their breed: the provider reads the pets from this view,
+     * and writes into the pets table. The rowid column is for the FTS table
+     * (its content is read by rowid).
+     */
+    public static final String PETS_VIEW_NAME = "pets_view";
+
+    private static final String SQL_CREATE_PETS_VIEW_V6 = createPetsView("");
+    // Since the version 7, without the tombstones
+    private static final String SQL_CREATE_PETS_VIEW =
+            createPetsView(" WHERE " + PetEntry.TABLE_NAME + "." + SELECTION_LIVE);
+
+    private static String createPetsView(String where) {
+        return "CREATE VIEW " + PETS_VIEW_NAME + " AS SELECT "
+                + PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS rowid, "
+                + PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS " + PetEntry._ID + ", "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", "
+                + BREEDS_TABLE_NAME + "." + PetEntry.COLUMN_PET_BREED + " AS " + PetEntry.COLUMN_PET_BREED + ", "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT
+                + " FROM " + PetEntry.TABLE_NAME + " LEFT JOIN " + BREEDS_TABLE_NAME
+                + " ON " + BREEDS_TABLE_NAME + "." + BaseColumns._ID + " = " + PetEntry.TABLE_NAME + "." + COLUMN_PET_BREED_ID
+                + where + ";";
+    }
+
+    /**
+     * Condition of a trigger on the live pets only (the row is "new" or "old"),
+     * for the versions of the schema with tombstones.
+     */
+    private static String whenLive(String row, boolean tombstones) {
+        return tombstones ? " WHEN " + row + "." + SELECTION_LIVE : "";
+    }
+
+    // Condition of the update that makes a live pet a tombstone
+    private static final String WHEN_TOMBSTONED =
+            " WHEN old." + SELECTION_LIVE + " AND new." + SELECTION_TOMBSTONES;
+
+    /**
+     * Text of the breed of a row (new or old) of the pets table, in a trigger.
+     *
+     * @param breedColumn the breed column of the version of the schema
+     */
+    private static String breedOf(String row, String breedColumn) {
+        if (COLUMN_PET_BREED_ID.equals(breedColumn)) {
+            return "(SELECT " + PetEntry.COLUMN_PET_BREED + " FROM " + BREEDS_TABLE_NAME
+                    + " WHERE " + BaseColumns._ID + " = " + row + "." + COLUMN_PET_BREED_ID + ")";
+        }
+        return row + "." + breedColumn;
+    }
+
+    /**
+     * Full-text index of the name and the breed of the pets.
+     * It is an external content FTS4 table: the text is stored only in the pets table,
+     * and the triggers below keep the index in sync with it.
+     * The prefix indexes make the prefix queries ("ter*") as fast as the full terms.
+     */
+    public static final String FTS_TABLE_NAME = "pets_fts";
+
+    public static final String SQL_CREATE_FTS_V2 = createFullTextTable(PetEntry.TABLE_NAME);
+    // Since the version 6, the text of the breed is read from the view of the pets
+    public static final String SQL_CREATE_FTS = createFullTextTable(PETS_VIEW_NAME);
+
+    private static String createFullTextTable(String contentTable) {
+        return "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                + "content=\"" + contentTable + "\", "
+                + "prefix=\"2,3\", "
+                + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ");";
+    }
+
+    // The old text must be removed from the index before the row changes.
+    // Only the changes of the indexed columns touch the index.
+    // Before the version 6, the breed was a column of the pets table (see breedOf).
+    // Since the version 7, a pet leaves the index when it becomes a tombstone
+    private static final String[] SQL_CREATE_FTS_TRIGGERS_V2 = fullTextTriggers(PetEntry.COLUMN_PET_BREED, false);
+    private static final String[] SQL_CREATE_FTS_TRIGGERS_V6 = fullTextTriggers(COLUMN_PET_BREED_ID, false);
+    private static final String[] SQL_CREATE_FTS_TRIGGERS = fullTextTriggers(COLUMN_PET_BREED_ID, true);
+
+    private static String[] fullTextTriggers(String breedColumn, boolean tombstones) {
+        String[] triggers = {
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_bu BEFORE UPDATE OF " + PetEntry.COLUMN_PET_NAME + ", " + breedColumn
+                + " ON " + PetEntry.TABLE_NAME + whenLive("old", tombstones) + " BEGIN "
+                + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;",
+
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_bd BEFORE DELETE ON " + PetEntry.TABLE_NAME
+                + whenLive("old", tombstones) + " BEGIN "
+                + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;",
+
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_au AFTER UPDATE OF " + PetEntry.COLUMN_PET_NAME + ", " + breedColumn
+                + " ON " + PetEntry.TABLE_NAME + whenLive("new", tombstones) + " BEGIN "
+                + "INSERT INTO " + FTS_TABLE_NAME + "(docid, " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                + "VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", " + breedOf("new", breedColumn) + "); END;",
+
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_ai AFTER INSERT ON " + PetEntry.TABLE_NAME
+                + whenLive("new", tombstones) + " BEGIN "
+                + "INSERT INTO " + FTS_TABLE_NAME + "(docid, " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                + "VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", " + breedOf("new", breedColumn) + "); END;"
+        };
+        if (!tombstones) {
+            return triggers;
+        }
+
+        // Removed from the index before the row leaves the view (the text is read from the view)
+        return append(triggers,
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_bt BEFORE UPDATE OF " + COLUMN_PET_DELETED
+                + " ON " + PetEntry.TABLE_NAME + WHEN_TOMBSTONED + " BEGIN "
+                + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;");
+    }
+
+    private static String[] append(String[] statements, String statement) {
+        String[] all = Arrays.copyOf(statements, statements.length + 1);
+        all[statements.length] = statement;
+        return all;
+    }
+
+    // Index the rows already in the pets table
+    private static final String SQL_REBUILD_FTS =
+            "INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ") VALUES ('rebuild');";
+
+    /**
+     * Summary tables of the pets statistics, updated by triggers on each write of the pets table.
+     * pet_stats has only one row; breed_stats has one row per breed
+     * (the pets without breed are counted with the breed '').
+     */
+    public static final String STATS_TABLE_NAME = "pet_stats";
+    public static final String BREED_STATS_TABLE_NAME = "breed_stats";
+
+    private static final String SQL_CREATE_STATS =
+            "CREATE TABLE " + STATS_TABLE_NAME + "("
+            + PetStatsEntry._ID + " INTEGER PRIMARY KEY CHECK (" + PetStatsEntry._ID + " = 0), "
+            + PetStatsEntry._COUNT + " INTEGER NOT NULL DEFAULT 0, "
+            + PetStatsEntry.COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+            + PetStatsEntry.COLUMN_COUNT_MALE + " INTEGER NOT NULL DEFAULT 0, "
+            + PetStatsEntry.COLUMN_COUNT_FEMALE + " INTEGER NOT NULL DEFAULT 0, "
+            + PetStatsEntry.COLUMN_COUNT_UNKNOWN + " INTEGER NOT NULL DEFAULT 0);";
+
+    private static final String SQL_CREATE_BREED_STATS =
+            "CREATE TABLE " + BREED_STATS_TABLE_NAME + "("
+            + PetStatsEntry.COLUMN_BREED + " TEXT PRIMARY KEY NOT NULL, "
+            + PetStatsEntry._COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+    // Fill the summary tables from the pets already in the table
+    private static final String SQL_FILL_STATS =
+            "INSERT INTO " + STATS_TABLE_NAME + " SELECT 0, "
+            + "COUNT(*), "
+            + "IFNULL(SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), 0), "
+            + "IFNULL(SUM(" + PetEntry.COLUMN_PET_GENDER + " = " + PetEntry.GENDER_MALE + "), 0), "
+            + "IFNULL(SUM(" + PetEntry.COLUMN_PET_GENDER + " = " + PetEntry.GENDER_FEMALE + "), 0), "
+            + "IFNULL(SUM(" + PetEntry.COLUMN_PET_GENDER + " = " + PetEntry.GENDER_UNKNOWN + "), 0) "
+            + "FROM " + PetEntry.TABLE_NAME + ";";
+
+    private static final String SQL_FILL_BREED_STATS_V3 = fillBreedStats(PetEntry.TABLE_NAME);
+    private static final String SQL_FILL_BREED_STATS = fillBreedStats(PETS_VIEW_NAME);
+
+    private static String fillBreedStats(String petsTable) {
+        return "INSERT INTO " + BREED_STATS_TABLE_NAME + " SELECT "
+                + "IFNULL(" + PetEntry.COLUMN_PET_BREED + ", ''), COUNT(*) "
+                + "FROM " + petsTable + " GROUP BY IFNULL(" + PetEntry.COLUMN_PET_BREED + ", '');";
+    }
+
+    private static final String[] SQL_CREATE_STATS_TRIGGERS_V3 = statsTriggers(PetEntry.COLUMN_PET_BREED, false);
+    private static final String[] SQL_CREATE_STATS_TRIGGERS_V6 = statsTriggers(COLUMN_PET_BREED_ID, false);
+    private static final String[] SQL_CREATE_STATS_TRIGGERS = statsTriggers(COLUMN_PET_BREED_ID, true);
+
+    private static String[] statsTriggers(String breedColumn, boolean tombstones) {
+        String[] triggers = {
+                "CREATE TRIGGER " + STATS_TABLE_NAME + "_ai AFTER INSERT ON " + PetEntry.TABLE_NAME
+                + whenLive("new", tombstones) + " BEGIN "
+                + statsUpdate("+", "new")
+                + breedStatsAdd(breedOf("new", breedColumn))
+                + "END;",
+
+                "CREATE TRIGGER " + STATS_TABLE_NAME + "_ad AFTER DELETE ON " + PetEntry.TABLE_NAME
+                + whenLive("old", tombstones) + " BEGIN "
+                + statsUpdate("-", "old")
+                + breedStatsRemove(breedOf("old", breedColumn))
+                + "END;",
+
+                "CREATE TRIGGER " + STATS_TABLE_NAME + "_au AFTER UPDATE OF "
+                + breedColumn + ", " + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT
+                + " ON " + PetEntry.TABLE_NAME + whenLive("old", tombstones) + " BEGIN "
+                + statsUpdate("-", "old")
+                + statsUpdate("+", "new")
+                + breedStatsRemove(breedOf("old", breedColumn))
+                + breedStatsAdd(breedOf("new", breedColumn))
+                + "END;"
+        };
+        if (!tombstones) {
+            return triggers;
+        }
+
+        return append(triggers,
+                "CREATE TRIGGER " + STATS_TABLE_NAME + "_at AFTER UPDATE OF " + COLUMN_PET_DELETED
+                + " ON " + PetEntry.TABLE_NAME + WHEN_TOMBSTONED + " BEGIN "
+                + statsUpdate("-", "old")
+                + breedStatsRemove(breedOf("old", breedColumn))
+                + "END;");
+    }
+
+    // Add (sign "+") or remove (sign "-") the row (new or old) from the statistics
+    private static String statsUpdate(String sign, String row) {
+        return "UPDATE " + STATS_TABLE_NAME + " SET "
+                + PetStatsEntry._COUNT + " = " + PetStatsEntry._COUNT + " " + sign + " 1, "
+                + PetStatsEntry.COLUMN_TOTAL_WEIGHT + " = " + PetStatsEntry.COLUMN_TOTAL_WEIGHT
+                + " " + sign + " " + row + "." + PetEntry.COLUMN_PET_WEIGHT + ", "
+                + PetStatsEntry.COLUMN_COUNT_MALE + " = " + PetStatsEntry.COLUMN_COUNT_MALE
+                + " " + sign + " (" + row + "." + PetEntry.COLUMN_PET_GENDER + " = " + PetEntry.GENDER_MALE + "), "
+                + PetStatsEntry.COLUMN_COUNT_FEMALE + " = " + PetStatsEntry.COLUMN_COUNT_FEMALE
+                + " " + sign + " (" + row + "." + PetEntry.COLUMN_PET_GENDER + " = " + PetEntry.GENDER_FEMALE + "), "
+                + PetStatsEntry.COLUMN_COUNT_UNKNOWN + " = " + PetStatsEntry.COLUMN_COUNT_UNKNOWN
+                + " " + sign + " (" + row + "." + PetEntry.COLUMN_PET_GENDER + " = " + PetEntry.GENDER_UNKNOWN + ") "
+                + "WHERE " + PetStatsEntry._ID + " = 0; ";
+    }
+
+    private static String breedStatsAdd(String breedValue) {
+        String breed = "IFNULL(" + breedValue + ", '')";
+        return "INSERT OR IGNORE INTO " + BREED_STATS_TABLE_NAME + " VALUES (" + breed + ", 0); "
+                + "UPDATE " + BREED_STATS_TABLE_NAME + " SET " + PetStatsEntry._COUNT + " = " + PetStatsEntry._COUNT + " + 1 "
+                + "WHERE " + PetStatsEntry.COLUMN_BREED + " = " + breed + "; ";
+    }
+
+    // The breeds without pet are removed
+    private static String breedStatsRemove(String breedValue) {
+        String breed = "IFNULL(" + breedValue + ", '')";
+        return "UPDATE " + BREED_STATS_TABLE_NAME + " SET " + PetStatsEntry._COUNT + " = " + PetStatsEntry._COUNT + " - 1 "
+                + "WHERE " + PetStatsEntry.COLUMN_BREED + " = " + breed + "; "
+                + "DELETE FROM " + BREED_STATS_TABLE_NAME + " WHERE " + PetStatsEntry.COLUMN_BREED + " = " + breed
+                + " AND " + PetStatsEntry._COUNT + " <= 0; ";
+    }
+
+    /**
+     * Log of the changes of the pets table, written by triggers in the transaction of the change.
+     * AUTOINCREMENT: a sequence number is never used again, even after the pruning.
+     * Only the last {@link #CHANGES_LOG_SIZE} changes are kept (pruned every 1000 changes).
+     */
+    public static final String COLUMN_CHANGE_PET_ID = "pet_id";
+    public static final int CHANGES_LOG_SIZE = 10000;
+
+    private static final String SQL_CREATE_CHANGES =
+            "CREATE TABLE " + PetChangesEntry.TABLE_NAME + "("
+            + PetChangesEntry.COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + COLUMN_CHANGE_PET_ID + " INTEGER NOT NULL);";
+
+    private static final String[] SQL_CREATE_CHANGES_TRIGGERS_V4 = changesTriggers(false);
+    // Since the version 7, the change is logged when the pet becomes a tombstone,
+    // and not again when the tombstone is purged
+    private static final String[] SQL_CREATE_CHANGES_TRIGGERS = changesTriggers(true);
+
+    private static String[] changesTriggers(boolean tombstones) {
+        return new String[] {
+                "CREATE TRIGGER " + PetChangesEntry.TABLE_NAME + "_ai AFTER INSERT ON " + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("new") + "END;",
+
+                "CREATE TRIGGER " + PetChangesEntry.TABLE_NAME + "_au AFTER UPDATE ON " + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("new") + "END;",
+
+                "CREATE TRIGGER " + PetChangesEntry.TABLE_NAME + "_ad AFTER DELETE ON " + PetEntry.TABLE_NAME
+                + whenLive("old", tombstones) + " BEGIN "
+                + logChange("old") + "END;"
+        };
+    }
+
+    // On the log itself: it stays when the pets table is rebuilt
+    private static final String SQL_CREATE_CHANGES_PRUNE_TRIGGER =
+            "CREATE TRIGGER " + PetChangesEntry.TABLE_NAME + "_prune AFTER INSERT ON " + PetChangesEntry.TABLE_NAME
+            + " WHEN new." + PetChangesEntry.COLUMN_SEQUENCE + " % 1000 = 0 BEGIN "
+            + "DELETE FROM " + PetChangesEntry.TABLE_NAME + " WHERE " + PetChangesEntry.COLUMN_SEQUENCE
+            + " <= new." + PetChangesEntry.COLUMN_SEQUENCE + " - " + CHANGES_LOG_SIZE + "; END;";
+
+    private static String logChange(String row) {
+        return "INSERT INTO " + PetChangesEntry.TABLE_NAME + "(" + COLUMN_CHANGE_PET_ID + ") "
+                + "VALUES (" + row + "." + PetEntry._ID + "); ";
+    }
+
+    /**
+     * Indexes of the catalog queries (the unit test PetQueryPlansTest checks the plan of each
+     * query they serve).
+     * name, breed: the list of the pets sorted by name is read from the index only
+     * (the _id is the rowid, in each entry of the index; since the version 6, the breed
+     * is its ID, and its text is read from the breeds table by primary key; since the
+     * version 9, the _id follows the name: the index gives the order "name, _id").
+     * gender, weight: the pets of a gender, in a range of weight and/or sorted by weight.
+     * weight (version 8): all the pets sorted by weight, or in a range of weight.
+     * The weight indexes end with the rowid: they give the order "weight, _id" as they are.
+     */
+    public static final String INDEX_NAME_BREED = PetEntry.TABLE_NAME + "_name_breed";
+    public static final String INDEX_GENDER_WEIGHT = PetEntry.TABLE_NAME + "_gender_weight";
+    public static final String INDEX_WEIGHT = PetEntry.TABLE_NAME + "_weight";
+
+    // The tombstones, for the compactor (version 7)
+    public static final String INDEX_TOMBSTONES = PetEntry.TABLE_NAME + "_tombstones";
+
+    private static final String SQL_CREATE_INDEX_NAME_BREED_V5 =
+            "CREATE INDEX " + INDEX_NAME_BREED + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ");";
+    // Since the version 6: the text of the breed is read from the breeds table by its ID
+    private static final String SQL_CREATE_INDEX_NAME_BREED_V6 =
+            "CREATE INDEX " + INDEX_NAME_BREED + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_NAME + ", " + COLUMN_PET_BREED_ID + ");";
+
+    private static final String SQL_CREATE_INDEX_GENDER_WEIGHT_V5 =
+            "CREATE INDEX " + INDEX_GENDER_WEIGHT + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");";
+
+    // Since the version 7, partial indexes: only the live pets, the ones the view reads.
+    // The tombstones don't make the indexes of the catalog bigger
+    private static final String SQL_CREATE_INDEX_NAME_BREED_V7 =
+            "CREATE INDEX " + INDEX_NAME_BREED + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_NAME + ", " + COLUMN_PET_BREED_ID + ") WHERE " + SELECTION_LIVE + ";";
+    // Since the version 9, the ID after the name: the index gives the order "name, _id"
+    // of the view by name (its pages are read by keyset, and the order must be unique)
+    private static final String SQL_CREATE_INDEX_NAME_BREED =
+            "CREATE INDEX " + INDEX_NAME_BREED + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry._ID + ", " + COLUMN_PET_BREED_ID
+            + ") WHERE " + SELECTION_LIVE + ";";
+
+    private static final String SQL_CREATE_INDEX_GENDER_WEIGHT =
+            "CREATE INDEX " + INDEX_GENDER_WEIGHT + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") WHERE " + SELECTION_LIVE + ";";
+
+    private static final String SQL_CREATE_INDEX_WEIGHT =
+            "CREATE INDEX " + INDEX_WEIGHT + " ON " + PetEntry.TABLE_NAME + "("
+            + PetEntry.COLUMN_PET_WEIGHT + ") WHERE " + SELECTION_LIVE + ";";
+
+    private static final String SQL_CREATE_INDEX_TOMBSTONES =
+            "CREATE INDEX " + INDEX_TOMBSTONES + " ON " + PetEntry.TABLE_NAME + "("
+            + COLUMN_PET_DELETED + ") WHERE " + SELECTION_TOMBSTONES + ";";
+
+    /**
+     * Registry of the schema migrations, in the order of the versions.
+     * To change the schema: add a step here and increase DATABASE_VERSION.
+     * A new database is created with the version 1 schema, then goes through all the steps,
+     * so the new installs and the upgrades always end with the same schema.
+     */
+    private static final PetMigration[] MIGRATIONS = {
+            new PetMigration(2, "Full-text index on name and breed") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_FTS_V2);
+                    execSQL(db, SQL_CREATE_FTS_TRIGGERS_V2);
+                    db.execSQL(SQL_REBUILD_FTS);
+                }
+            },
+            new PetMigration(3, "Summary tables of the statistics") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_STATS);
+                    db.execSQL(SQL_CREATE_BREED_STATS);
+                    db.execSQL(SQL_FILL_STATS);
+                    db.execSQL(SQL_FILL_BREED_STATS_V3);
+                    execSQL(db, SQL_CREATE_STATS_TRIGGERS_V3);
+                }
+            },
+            new PetMigration(4, "Log of the changes") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_CHANGES);
+                    db.execSQL(SQL_CREATE_CHANGES_PRUNE_TRIGGER);
+                    execSQL(db, SQL_CREATE_CHANGES_TRIGGERS_V4);
+                }
+            },
+            new PetMigration(5, "Indexes of the catalog sort and filters") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_INDEX_NAME_BREED_V5);
+                    db.execSQL(SQL_CREATE_INDEX_GENDER_WEIGHT_V5);
+                }
+            },
+            new PetMigration(6, "Breeds in their own table") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    migrateBreeds(db);
+                }
+            },
+            new PetMigration(7, "Tombstones of the deleted pets") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    // All the pets are live: only the schema changes
+                    db.execSQL(SQL_ADD_DELETED_COLUMN);
+                    dropPetsTriggers(db);
+                    db.execSQL("DROP VIEW " + PETS_VIEW_NAME);
+                    db.execSQL(SQL_CREATE_PETS_VIEW);
+                    db.execSQL("DROP INDEX " + INDEX_NAME_BREED);
+                    db.execSQL("DROP INDEX " + INDEX_GENDER_WEIGHT);
+                    db.execSQL(SQL_CREATE_INDEX_NAME_BREED_V7);
+                    db.execSQL(SQL_CREATE_INDEX_GENDER_WEIGHT);
+                    db.execSQL(SQL_CREATE_INDEX_TOMBSTONES);
+                    createPetsTriggers(db);
+                }
+            },
+            new PetMigration(8, "Index of the weight, for the views by weight of all the pets") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_INDEX_WEIGHT);
+                }
+            },
+            new PetMigration(9, "Index of the name with the ID, for the pages of the view by name") {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX " + INDEX_NAME_BREED);
+                    db.execSQL(SQL_CREATE_INDEX_NAME_BREED);
+                }
+            }
+    };
+
+    // Concurrent mode settings: with WAL, synchronous=NORMAL is still durable against
+    // an app crash and only syncs at the checkpoints, not at each commit
+    private static final String PRAGMA_SYNCHRONOUS = "PRAGMA synchronous = NORMAL";
+    // Checkpoint when the WAL file reaches this number of pages
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    private final boolean mConcurrentMode;
+
     public PetDbHelper(@Nullable Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param context
+     * @param concurrentMode true to use write-ahead logging (the readers and the writer
+     *                       don't block each other)
+     */
+    public PetDbHelper(@Nullable Context context, boolean concurrentMode) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mConcurrentMode = concurrentMode;
+        setWriteAheadLoggingEnabled(concurrentMode);
+    }
+
+    public boolean isConcurrentMode() {
+        return mConcurrentMode;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Only applied to a new database (before its first table): the older ones
+        // are converted by the maintenance (see PetMaintenance)
+        executePragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        if (mConcurrentMode) {
+            executePragma(db, PRAGMA_SYNCHRONOUS);
+            executePragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+        }
+    }
+
+    // Some PRAGMA return a row: they can't go through execSQL.
+    // The cursor steps the statement to its end (incremental_vacuum frees one page by step)
+    static void executePragma(SQLiteDatabase db, String sqlPragma) {
+        Cursor cursor = db.rawQuery(sqlPragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -31,11 +540,207 @@ public class PetDbHelper extends SQLiteOpenHelper {
         db.execSQL(SQL_CREATE_ENTRIES);
 
         Log.e(LOG_TAG, "Table creation: " + SQL_CREATE_ENTRIES);
+
+        runMigrations(db, 1, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        runMigrations(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Run the migration steps from oldVersion (excluded) to newVersion (included).
+     *
+     * Each step runs in its own transaction, nested in the transaction of SQLiteOpenHelper:
+     * if a step fails, the whole upgrade is rolled back and the database stays
+     * at oldVersion, so the upgrade runs again at the next opening.
+     * The duration of each step is logged.
+     */
+    private static void runMigrations(SQLiteDatabase db, int oldVersion, int newVersion) {
+        int version = oldVersion;
+
+        for (PetMigration migration : MIGRATIONS) {
+            if (migration.getVersion() <= oldVersion) {
+                continue;
+            }
+            if (migration.getVersion() > newVersion) {
+                break;
+            }
+            if (migration.getVersion() != version + 1) {
+                throw new IllegalStateException("Missing migration to version " + (version + 1));
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            Log.i(LOG_TAG, "Migration to version " + migration.getVersion()
+                    + " (" + migration.getDescription() + "): "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            version = migration.getVersion();
+        }
+
+        if (version != newVersion) {
+            throw new IllegalStateException("Missing migration to version " + newVersion);
+        }
+    }
+
+    /**
+     * Version 6: the breeds move to the breeds table, and the pets table is rebuilt
+     * with the ID of the breed in place of its text (SQLite can't drop a column).
+     *
+     * The case-folded key is computed here, in Java, like on the write path of the provider:
+     * the lower() of SQLite only folds the ASCII letters.
+     */
+    private static void migrateBreeds(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_BREEDS);
+
+        // Each spelling of the pets table gets the ID of its breed
+        db.execSQL("CREATE TEMP TABLE breed_spellings(" + PetEntry.COLUMN_PET_BREED + " TEXT PRIMARY KEY, "
+                + COLUMN_PET_BREED_ID + " INTEGER NOT NULL);");
+        Map<String, Long> breedIds = new HashMap<>();
+        SQLiteStatement insertBreed = db.compileStatement("INSERT INTO " + BREEDS_TABLE_NAME + "("
+                + PetEntry.COLUMN_PET_BREED + ", " + COLUMN_BREED_KEY + ") VALUES (?, ?)");
+        SQLiteStatement insertSpelling = db.compileStatement("INSERT INTO breed_spellings VALUES (?, ?)");
+        Cursor cursor = db.rawQuery("SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                String spelling = cursor.getString(0);
+                String key = PetBreedCache.toKey(spelling);
+                if (key.isEmpty()) {
+                    continue;
+                }
+                Long breedId = breedIds.get(key);
+                if (breedId == null) {
+                    insertBreed.bindString(1, spelling.trim());
+                    insertBreed.bindString(2, key);
+                    breedId = insertBreed.executeInsert();
+                    breedIds.put(key, breedId);
+                }
+                insertSpelling.bindString(1, spelling);
+                insertSpelling.bindLong(2, breedId);
+                insertSpelling.executeInsert();
+            }
+        } finally {
+            cursor.close();
+            insertBreed.close();
+            insertSpelling.close();
+        }
+
+        // The next IDs of AUTOINCREMENT must not reuse the IDs of the pets deleted
+        long lastId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?",
+                new String[] {PetEntry.TABLE_NAME});
+
+        // The FTS table reads its content from the pets table: it is created again on the view
+        db.execSQL("DROP TABLE " + FTS_TABLE_NAME);
+
+        String newTableName = PetEntry.TABLE_NAME + "_new";
+        db.execSQL(String.format(SQL_CREATE_PETS_V6, newTableName));
+        db.execSQL("INSERT INTO " + newTableName + " SELECT "
+                + "p." + PetEntry._ID + ", p." + PetEntry.COLUMN_PET_NAME + ", s." + COLUMN_PET_BREED_ID + ", "
+                + "p." + PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT
+                + " FROM " + PetEntry.TABLE_NAME + " AS p LEFT JOIN breed_spellings AS s"
+                + " ON s." + PetEntry.COLUMN_PET_BREED + " = p." + PetEntry.COLUMN_PET_BREED + ";");
+        // The triggers and the indexes of the old table are dropped with it
+        db.execSQL("DROP TABLE " + PetEntry.TABLE_NAME);
+        db.execSQL("ALTER TABLE " + newTableName + " RENAME TO " + PetEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE breed_spellings");
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + PetEntry.TABLE_NAME + "'");
+        if (lastId > 0) {
+            db.execSQL("INSERT INTO sqlite_sequence(name, seq) VALUES ('" + PetEntry.TABLE_NAME + "', " + lastId + ")");
+        }
+
+        db.execSQL(SQL_CREATE_PETS_VIEW_V6);
+        db.execSQL(SQL_CREATE_INDEX_NAME_BREED_V6);
+        db.execSQL(SQL_CREATE_INDEX_GENDER_WEIGHT_V5);
+
+        db.execSQL(SQL_CREATE_FTS);
+        execSQL(db, SQL_CREATE_FTS_TRIGGERS_V6);
+        db.execSQL(SQL_REBUILD_FTS);
+
+        // The spellings that differ by the case are now counted together
+        db.execSQL("DELETE FROM " + BREED_STATS_TABLE_NAME);
+        db.execSQL(SQL_FILL_BREED_STATS);
+        execSQL(db, SQL_CREATE_STATS_TRIGGERS_V6);
+
+        execSQL(db, SQL_CREATE_CHANGES_TRIGGERS_V4);
+    }
+
+    /* ********************************************
+
+               Schema of the current version
+               (used by the fast clear, see PetFastClear)
+
+    ********************************************** */
+
+    static void createPetsTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_PETS);
+    }
+
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_INDEX_NAME_BREED);
+        db.execSQL(SQL_CREATE_INDEX_GENDER_WEIGHT);
+        db.execSQL(SQL_CREATE_INDEX_WEIGHT);
+        db.execSQL(SQL_CREATE_INDEX_TOMBSTONES);
+    }
+
+    // The summary tables, filled from the pets table
+    static void createStatsTables(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_STATS);
+        db.execSQL(SQL_CREATE_BREED_STATS);
+        db.execSQL(SQL_FILL_STATS);
+        db.execSQL(SQL_FILL_BREED_STATS);
+    }
+
+    // All the triggers of the pets table
+    static void createPetsTriggers(SQLiteDatabase db) {
+        execSQL(db, SQL_CREATE_FTS_TRIGGERS);
+        execSQL(db, SQL_CREATE_STATS_TRIGGERS);
+        execSQL(db, SQL_CREATE_CHANGES_TRIGGERS);
+    }
+
+    /**
+     * Empty the log of the changes, and leave a gap in the sequence: the readers of the log
+     * see that the changes since their last read are lost, and read all the pets again.
+     * For the changes that are not written in the log pet by pet.
+     */
+    static void resetChangesLog(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + PetChangesEntry.TABLE_NAME);
+        // One change (on no pet) after the gap: the first sequence of the log is the last + 2
+        db.execSQL("INSERT INTO " + PetChangesEntry.TABLE_NAME + "("
+                + PetChangesEntry.COLUMN_SEQUENCE + ", " + COLUMN_CHANGE_PET_ID + ") "
+                + "VALUES ((SELECT IFNULL(MAX(seq), 0) + 2 FROM sqlite_sequence WHERE name = '"
+                + PetChangesEntry.TABLE_NAME + "'), 0)");
+    }
+
+    // All the triggers of the pets table (their names depend on the version)
+    static void dropPetsTriggers(SQLiteDatabase db) {
+        List<String> triggers = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ?",
+                new String[] {PetEntry.TABLE_NAME});
+        try {
+            while (cursor.moveToNext()) {
+                triggers.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String trigger : triggers) {
+            db.execSQL("DROP TRIGGER " + trigger);
+        }
+    }
 
+    private static void execSQL(SQLiteDatabase db, String[] statements) {
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
     }
 
 
@@ -0,0 +1,182 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes all the pets, as CSV or JSON, into the pipe opened by
+ * {@link PetProvider#openFile} / {@link PetProvider#openTypedAssetFile}.
+ *
+ * It runs in a background thread. The pets are read by chunks of {@link #CHUNK_SIZE} rows
+ * (keyset pagination on the _id), so the memory used doesn't depend on the number of pets.
+ * The chunks are separate queries: a pet changed during the export can be exported
+ * before or after the change.
+ */
+public class PetExporter implements ContentProvider.PipeDataWriter<SQLiteDatabase> {
+    public static final String LOG_TAG = PetExporter.class.getSimpleName();
+
+    // Number of rows read by query
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String[] COLUMNS = PetProvider.ALL_COLUMNS;
+
+    // Text written before each value of a JSON row
+    private static final String[] JSON_PREFIXES = new String[COLUMNS.length];
+
+    static {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            JSON_PREFIXES[i] = (i == 0 ? "{" : ",") + JSONObject.quote(COLUMNS[i]) + ":";
+        }
+    }
+
+    @Override
+    public void writeDataToPipe(@NonNull ParcelFileDescriptor output,
+                                @NonNull Uri uri,
+                                @NonNull String mimeType,
+                                Bundle opts,
+                                SQLiteDatabase db) {
+        boolean json = PetEntry.EXPORT_TYPE_JSON.equals(mimeType);
+        int nbPets = 0;
+
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output.getFileDescriptor()), "UTF-8"));
+
+            if (json) {
+                writer.write("[");
+            } else {
+                writeCsvHeader(writer);
+            }
+
+            long lastId = 0;
+            int nbRows;
+            do {
+                Cursor cursor = db.query(PetDbHelper.PETS_VIEW_NAME,
+                        COLUMNS,
+                        PetEntry._ID + ">?",
+                        new String[] {String.valueOf(lastId)},
+                        null,
+                        null,
+                        PetEntry._ID + " ASC",
+                        String.valueOf(CHUNK_SIZE));
+                try {
+                    nbRows = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        if (json) {
+                            writer.write(nbPets == 0 ? "\n" : ",\n");
+                            writeJsonRow(writer, cursor);
+                        } else {
+                            writeCsvRow(writer, cursor);
+                        }
+                        nbPets++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (nbRows == CHUNK_SIZE);
+
+            if (json) {
+                writer.write("\n]\n");
+            }
+            writer.flush();
+
+            Log.i(LOG_TAG, "Export of " + nbPets + " pets (" + mimeType + ")");
+        } catch (IOException e) {
+            // The reader closed the pipe
+            Log.e(LOG_TAG, "Export interrupted after " + nbPets + " pets", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+
+    /* ********************************************
+
+               CSV
+
+    ********************************************** */
+    private static void writeCsvHeader(Writer writer) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write('\n');
+    }
+
+    // Columns: _id, name, breed, gender, weight
+    private static void writeCsvRow(Writer writer, Cursor cursor) throws IOException {
+        writer.write(Long.toString(cursor.getLong(0)));
+        writer.write(',');
+        writeCsvText(writer, cursor.getString(1));
+        writer.write(',');
+        writeCsvText(writer, cursor.getString(2));
+        writer.write(',');
+        writer.write(Integer.toString(cursor.getInt(3)));
+        writer.write(',');
+        writer.write(Integer.toString(cursor.getInt(4)));
+        writer.write('\n');
+    }
+
+    // A text with a comma, a quote or a new line is quoted (the quotes are doubled)
+    private static void writeCsvText(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0
+                && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            writer.write(text);
+            return;
+        }
+        writer.write('"');
+        writer.write(text.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /* ********************************************
+
+               JSON
+
+    ********************************************** */
+    private static void writeJsonRow(Writer writer, Cursor cursor) throws IOException {
+        writer.write(JSON_PREFIXES[0]);
+        writer.write(Long.toString(cursor.getLong(0)));
+        writer.write(JSON_PREFIXES[1]);
+        writeJsonText(writer, cursor.getString(1));
+        writer.write(JSON_PREFIXES[2]);
+        writeJsonText(writer, cursor.getString(2));
+        writer.write(JSON_PREFIXES[3]);
+        writer.write(Integer.toString(cursor.getInt(3)));
+        writer.write(JSON_PREFIXES[4]);
+        writer.write(Integer.toString(cursor.getInt(4)));
+        writer.write('}');
+    }
+
+    private static void writeJsonText(Writer writer, String text) throws IOException {
+        writer.write(text == null ? "null" : JSONObject.quote(text));
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+/**
+ * "Delete all" of the pets without deleting them row by row.
+ *
+ * The pets table, its full text table and its summary tables are renamed into a trash,
+ * and empty tables of the same schema take their place: the cost doesn't depend on the
+ * number of pets. The trash is kept during the undo window: {@link #undo(SQLiteDatabase)}
+ * renames it back. At the end of the window, the trash is dropped and the pages
+ * are given back to the file system, on a background thread.
+ *
+ * The indexes of the pets stay with the trash (SQLite doesn't rename an index): the new
+ * table gets its indexes when the trash is dropped. During the window, the pets added
+ * are few and don't need them.
+ */
+public class PetFastClear {
+    public static final String LOG_TAG = PetFastClear.class.getSimpleName();
+
+    // VACUUM after the drop of the trash when more than this part of the file is free
+    private static final double VACUUM_FREE_RATIO = 0.25;
+
+    private static final String TRASH_SUFFIX = "_trash";
+    // The pets added during the undo window, while the trash is put back
+    private static final String ADDED_TABLE_NAME = PetEntry.TABLE_NAME + "_added";
+
+    // The tables renamed into the trash
+    private static final String[] TABLES = {
+            PetEntry.TABLE_NAME,
+            PetDbHelper.FTS_TABLE_NAME,
+            PetDbHelper.STATS_TABLE_NAME,
+            PetDbHelper.BREED_STATS_TABLE_NAME
+    };
+
+    // The columns of the pets table
+    private static final String PETS_COLUMNS = PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetDbHelper.COLUMN_PET_BREED_ID + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT;
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final long mUndoWindow;
+    private final Handler mHandler;
+
+    private final Runnable mReclaimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reclaim();
+        }
+    };
+
+    /**
+     * @param dbHelper   helper of the pets database
+     * @param undoWindow time (ms) during which a clear can be undone
+     */
+    public PetFastClear(@NonNull SQLiteOpenHelper dbHelper, long undoWindow) {
+        mDbHelper = dbHelper;
+        mUndoWindow = undoWindow;
+
+        HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Delete all the pets, in one transaction (or in the transaction of the caller).
+     * The change log is reset: its readers read all the pets again.
+     *
+     * @param db writable database
+     * @return the number of pets deleted
+     */
+    public int clear(@NonNull SQLiteDatabase db) {
+        int nbPets;
+        db.beginTransaction();
+        try {
+            // A second clear during the window: the first trash can't be put back anymore
+            dropTrash(db);
+
+            nbPets = (int) DatabaseUtils.longForQuery(db,
+                    "SELECT " + PetStatsEntry._COUNT + " FROM " + PetDbHelper.STATS_TABLE_NAME, null);
+            // The sequence of AUTOINCREMENT moves with the renamed table
+            long lastId = getLastId(db, PetEntry.TABLE_NAME);
+
+            renameTables(db, "", TRASH_SUFFIX);
+
+            PetDbHelper.createPetsTable(db);
+            if (lastId > 0) {
+                db.execSQL("INSERT INTO sqlite_sequence(name, seq) VALUES ('"
+                        + PetEntry.TABLE_NAME + "', " + lastId + ")");
+            }
+            db.execSQL(PetDbHelper.SQL_CREATE_FTS);
+            PetDbHelper.createStatsTables(db);
+            PetDbHelper.createPetsTriggers(db);
+            PetDbHelper.resetChangesLog(db);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        scheduleReclaim();
+        return nbPets;
+    }
+
+    /**
+     * Put back the pets of the last clear, if its undo window is still open.
+     * The pets added since the clear are kept.
+     *
+     * @param db writable database
+     * @return the number of pets put back (0 if there is nothing to undo)
+     */
+    public int undo(@NonNull SQLiteDatabase db) {
+        int nbPets = 0;
+        db.beginTransaction();
+        try {
+            if (hasTrash(db)) {
+                long lastId = getLastId(db, PetEntry.TABLE_NAME);
+
+                // The pets added since the clear wait in their own table
+                PetDbHelper.dropPetsTriggers(db);
+                setLegacyAlterTable(db, true);
+                try {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " RENAME TO " + ADDED_TABLE_NAME);
+                } finally {
+                    setLegacyAlterTable(db, false);
+                }
+                for (int i = 1; i < TABLES.length; i++) {
+                    db.execSQL("DROP TABLE " + TABLES[i]);
+                }
+
+                renameTables(db, TRASH_SUFFIX, "");
+                nbPets = (int) DatabaseUtils.longForQuery(db,
+                        "SELECT " + PetStatsEntry._COUNT + " FROM " + PetDbHelper.STATS_TABLE_NAME, null);
+
+                // The triggers index, count and log the pets added
+                PetDbHelper.createPetsTriggers(db);
+                db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + "(" + PETS_COLUMNS + ") "
+                        + "SELECT " + PETS_COLUMNS + " FROM " + ADDED_TABLE_NAME
+                        + " WHERE " + PetDbHelper.SELECTION_LIVE);
+                db.execSQL("DROP TABLE " + ADDED_TABLE_NAME);
+                // The IDs given during the window are not given again
+                db.execSQL("UPDATE sqlite_sequence SET seq = MAX(seq, " + lastId + ") "
+                        + "WHERE name = '" + PetEntry.TABLE_NAME + "'");
+                PetDbHelper.resetChangesLog(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (nbPets > 0) {
+            mHandler.removeCallbacks(mReclaimRunnable);
+        }
+        return nbPets;
+    }
+
+    /**
+     * Drop the trash left by a process stopped during an undo window.
+     */
+    public void reclaimLater() {
+        mHandler.post(mReclaimRunnable);
+    }
+
+    public void quit() {
+        mHandler.getLooper().quitSafely();
+    }
+
+    /* ********************************************
+
+               Background thread
+
+    ********************************************** */
+    private void scheduleReclaim() {
+        // The window starts again at each clear
+        mHandler.removeCallbacks(mReclaimRunnable);
+        mHandler.postDelayed(mReclaimRunnable, mUndoWindow);
+    }
+
+    private void reclaim() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        boolean dropped;
+        db.beginTransaction();
+        try {
+            dropped = dropTrash(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (!dropped) {
+            return;
+        }
+
+        long nbPages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long nbFreePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        Log.d(LOG_TAG, "Trash dropped: " + nbFreePages + " free pages of " + nbPages);
+        if (nbFreePages > nbPages * VACUUM_FREE_RATIO) {
+            // Out of any transaction
+            db.execSQL("VACUUM");
+        }
+    }
+
+    /* ********************************************
+
+               Schema
+
+    ********************************************** */
+
+    /**
+     * Drop the trash, and give its indexes to the pets table.
+     *
+     * @return true if there was a trash
+     */
+    private static boolean dropTrash(SQLiteDatabase db) {
+        if (!hasTrash(db)) {
+            return false;
+        }
+        for (String table : TABLES) {
+            db.execSQL("DROP TABLE " + table + TRASH_SUFFIX);
+        }
+        PetDbHelper.createIndexes(db);
+        return true;
+    }
+
+    private static boolean hasTrash(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] {PetEntry.TABLE_NAME + TRASH_SUFFIX}) > 0;
+    }
+
+    /**
+     * Rename the tables of the pets. The triggers of the pets table are dropped first
+     * (they name the other tables), and the view keeps the name of the pets table.
+     */
+    private static void renameTables(SQLiteDatabase db, String fromSuffix, String toSuffix) {
+        PetDbHelper.dropPetsTriggers(db);
+        setLegacyAlterTable(db, true);
+        try {
+            for (String table : TABLES) {
+                db.execSQL("ALTER TABLE " + table + fromSuffix + " RENAME TO " + table + toSuffix);
+            }
+        } finally {
+            setLegacyAlterTable(db, false);
+        }
+    }
+
+    /**
+     * Since SQLite 3.26, a renamed table is also renamed in the views: the legacy mode
+     * keeps the view on the name of the pets table. The older versions ignore the pragma.
+     */
+    private static void setLegacyAlterTable(SQLiteDatabase db, boolean legacy) {
+        db.execSQL("PRAGMA legacy_alter_table = " + (legacy ? "ON" : "OFF"));
+    }
+
+    private static long getLastId(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?",
+                new String[] {table});
+    }
+}
@@ -0,0 +1,515 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Imports pets from a CSV or JSON file (the formats of the {@link PetExporter}).
+ *
+ * The import is a pipeline of three stages:
+ * - the calling thread reads the file and cuts it into chunks of raw records,
+ * - several worker threads parse and validate the chunks with the {@link PetValidator} rules,
+ * - one writer thread commits the chunks, in the order of the file, with one
+ *   {@link ContentResolver#bulkInsert} (one transaction) per chunk.
+ *
+ * A chunk committed stays in the database even if the import fails later in the file.
+ */
+public class PetImporter {
+    public static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    public static final int DEFAULT_NB_WORKERS = 3;
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    // Columns of a record, in the order of the raw fields
+    private static final String[] FIELDS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    // Marks the end of the file in the queue of the parsed chunks
+    private static final Future<ParsedChunk> END = new FutureTask<>(new Callable<ParsedChunk>() {
+        @Override
+        public ParsedChunk call() {
+            return null;
+        }
+    });
+
+    /**
+     * Progress of an import, given to the {@link ProgressListener} after each chunk committed.
+     */
+    public static class Progress {
+        public int nbRead;
+        public int nbImported;
+        public int nbRejected;
+        public int nbChunksCommitted;
+        public long elapsedTime;
+
+        // Number of pets imported per second
+        public long getThroughput() {
+            return elapsedTime == 0 ? 0 : nbImported * 1000L / elapsedTime;
+        }
+    }
+
+    /**
+     * Called from the writer thread.
+     */
+    public interface ProgressListener {
+        void onProgress(@NonNull Progress progress);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final int mNbWorkers;
+    private final int mChunkSize;
+
+    public PetImporter(@NonNull ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_NB_WORKERS, DEFAULT_CHUNK_SIZE);
+    }
+
+    public PetImporter(@NonNull ContentResolver contentResolver, int nbWorkers, int chunkSize) {
+        mContentResolver = contentResolver;
+        mNbWorkers = nbWorkers;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Import the pets of the stream. Blocks until the import is finished: never call it
+     * from the main thread.
+     *
+     * @param inputStream
+     * @param mimeType    {@link PetEntry#EXPORT_TYPE_JSON} for a JSON file, CSV otherwise
+     * @param listener
+     * @return the final progress
+     * @throws IOException if the file can't be read, or if a chunk can't be committed
+     *                     (the chunks before it are committed)
+     */
+    @NonNull
+    public Progress importPets(@NonNull InputStream inputStream,
+                               @Nullable String mimeType,
+                               @Nullable ProgressListener listener) throws IOException {
+        final boolean json = PetEntry.EXPORT_TYPE_JSON.equals(mimeType);
+
+        // Parsed chunks, in the order of the file. The capacity bounds the memory:
+        // the reader waits when the writer is late
+        final BlockingQueue<Future<ParsedChunk>> parsedChunks = new ArrayBlockingQueue<>(mNbWorkers * 2);
+        final ExecutorService workers = Executors.newFixedThreadPool(mNbWorkers);
+        final Writer writer = new Writer(parsedChunks, listener);
+        writer.start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            if (json) {
+                readJson(reader, workers, parsedChunks, writer);
+            } else {
+                readCsv(reader, workers, parsedChunks, writer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.fail(new IOException("Import interrupted", e));
+        } catch (IOException | RuntimeException e) {
+            writer.fail(e);
+        } finally {
+            // End of the file
+            putUninterruptibly(parsedChunks, END);
+            workers.shutdown();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Progress progress = writer.getProgress();
+        Log.i(LOG_TAG, "Import: " + progress.nbImported + " pets imported, "
+                + progress.nbRejected + " rejected, in " + progress.elapsedTime + " ms ("
+                + progress.getThroughput() + " pets/s)");
+
+        Exception failure = writer.getFailure();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Import failed after " + progress.nbImported + " pets", failure);
+        }
+        return progress;
+    }
+
+    /* ********************************************
+
+               Stage 1: read the file (calling thread)
+
+    ********************************************** */
+    private void readCsv(BufferedReader reader,
+                         ExecutorService workers,
+                         BlockingQueue<Future<ParsedChunk>> parsedChunks,
+                         Writer writer) throws IOException, InterruptedException {
+        String header = reader.readLine();
+        if (header == null) {
+            return;
+        }
+        final int[] fieldColumns = mapCsvHeader(parseCsvLine(header));
+
+        List<String> lines = new ArrayList<>(mChunkSize);
+        String line;
+        while ((line = reader.readLine()) != null && !writer.isFailed()) {
+            // A quoted value can contain new lines: read until the quotes are closed
+            while (!hasClosedQuotes(line)) {
+                String nextLine = reader.readLine();
+                if (nextLine == null) {
+                    break;
+                }
+                line = line + "\n" + nextLine;
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            lines.add(line);
+            if (lines.size() == mChunkSize) {
+                submitCsvChunk(lines, fieldColumns, workers, parsedChunks);
+                lines = new ArrayList<>(mChunkSize);
+            }
+        }
+        if (!lines.isEmpty()) {
+            submitCsvChunk(lines, fieldColumns, workers, parsedChunks);
+        }
+    }
+
+    private void submitCsvChunk(final List<String> lines,
+                                final int[] fieldColumns,
+                                ExecutorService workers,
+                                BlockingQueue<Future<ParsedChunk>> parsedChunks) throws InterruptedException {
+        parsedChunks.put(workers.submit(new Callable<ParsedChunk>() {
+            @Override
+            public ParsedChunk call() {
+                List<String[]> records = new ArrayList<>(lines.size());
+                for (String line : lines) {
+                    List<String> values = parseCsvLine(line);
+                    String[] record = new String[FIELDS.length];
+                    for (int i = 0; i < FIELDS.length; i++) {
+                        int column = fieldColumns[i];
+                        record[i] = column >= 0 && column < values.size() ? values.get(column) : null;
+                    }
+                    records.add(record);
+                }
+                return toValidValues(records);
+            }
+        }));
+    }
+
+    private void readJson(BufferedReader reader,
+                          ExecutorService workers,
+                          BlockingQueue<Future<ParsedChunk>> parsedChunks,
+                          Writer writer) throws IOException, InterruptedException {
+        JsonReader jsonReader = new JsonReader(reader);
+        List<String[]> records = new ArrayList<>(mChunkSize);
+
+        jsonReader.beginArray();
+        while (jsonReader.hasNext() && !writer.isFailed()) {
+            String[] record = new String[FIELDS.length];
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                int field = indexOfField(jsonReader.nextName());
+                if (field < 0 || jsonReader.peek() == JsonToken.NULL) {
+                    jsonReader.skipValue();
+                } else {
+                    // The numbers are read as text, the workers convert them
+                    record[field] = jsonReader.nextString();
+                }
+            }
+            jsonReader.endObject();
+
+            records.add(record);
+            if (records.size() == mChunkSize) {
+                submitRecords(records, workers, parsedChunks);
+                records = new ArrayList<>(mChunkSize);
+            }
+        }
+        if (!records.isEmpty()) {
+            submitRecords(records, workers, parsedChunks);
+        }
+    }
+
+    private void submitRecords(final List<String[]> records,
+                               ExecutorService workers,
+                               BlockingQueue<Future<ParsedChunk>> parsedChunks) throws InterruptedException {
+        parsedChunks.put(workers.submit(new Callable<ParsedChunk>() {
+            @Override
+            public ParsedChunk call() {
+                return toValidValues(records);
+            }
+        }));
+    }
+
+    /* ********************************************
+
+               Stage 2: parse and validate (workers)
+
+    ********************************************** */
+
+    /**
+     * Convert the raw records into values, and keep only the valid ones.
+     */
+    private static ParsedChunk toValidValues(List<String[]> records) {
+        List<ContentValues> validValues = new ArrayList<>(records.size());
+        for (String[] record : records) {
+            ContentValues values = new ContentValues(FIELDS.length);
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (record[i] != null) {
+                    values.put(FIELDS[i], record[i]);
+                }
+            }
+
+            if (!PetValidator.isAllValid(values, true)) {
+                continue;
+            }
+            // The numbers are stored as numbers
+            values.put(PetEntry.COLUMN_PET_GENDER,
+                    PetValidator.asInt(values.get(PetEntry.COLUMN_PET_GENDER)));
+            if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+                values.put(PetEntry.COLUMN_PET_WEIGHT,
+                        PetValidator.asInt(values.get(PetEntry.COLUMN_PET_WEIGHT)));
+            }
+            // The provider trims the values while binding them
+            validValues.add(values);
+        }
+
+        return new ParsedChunk(records.size(),
+                validValues.toArray(new ContentValues[validValues.size()]));
+    }
+
+    /**
+     * A chunk of the file, parsed: the records not in the valid values were rejected.
+     */
+    private static class ParsedChunk {
+        final int nbRecords;
+        final ContentValues[] validValues;
+
+        ParsedChunk(int nbRecords, ContentValues[] validValues) {
+            this.nbRecords = nbRecords;
+            this.validValues = validValues;
+        }
+    }
+
+    /* ********************************************
+
+               Stage 3: commit (writer thread)
+
+    ********************************************** */
+    private class Writer extends Thread {
+        private final BlockingQueue<Future<ParsedChunk>> mParsedChunks;
+        private final ProgressListener mListener;
+        private final Progress mProgress = new Progress();
+        private final long mStart = SystemClock.elapsedRealtime();
+        private volatile Exception mFailure;
+
+        Writer(BlockingQueue<Future<ParsedChunk>> parsedChunks, ProgressListener listener) {
+            super(LOG_TAG);
+            mParsedChunks = parsedChunks;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            Future<ParsedChunk> parsedChunk;
+            while ((parsedChunk = takeUninterruptibly(mParsedChunks)) != END) {
+                if (isFailed()) {
+                    // Only empty the queue, so the reader is never blocked
+                    parsedChunk.cancel(false);
+                    continue;
+                }
+                try {
+                    commit(parsedChunk.get());
+                } catch (InterruptedException e) {
+                    fail(e);
+                } catch (ExecutionException e) {
+                    fail(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void commit(ParsedChunk chunk) {
+            // One transaction for the whole chunk: the provider gives the rows it rejected too
+            int nbImported = 0;
+            if (chunk.validValues.length > 0) {
+                Bundle extras = new Bundle();
+                extras.putParcelableArray(PetContract.KEY_BULK_INSERT_VALUES, chunk.validValues);
+                Bundle result = mContentResolver.call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_BULK_INSERT, null, extras);
+                if (result != null) {
+                    nbImported = result.getInt(PetContract.KEY_ROWS_ACCEPTED);
+                }
+            }
+
+            synchronized (mProgress) {
+                mProgress.nbRead += chunk.nbRecords;
+                mProgress.nbImported += nbImported;
+                mProgress.nbRejected += chunk.nbRecords - nbImported;
+                mProgress.nbChunksCommitted++;
+            }
+            if (mListener != null) {
+                mListener.onProgress(getProgress());
+            }
+        }
+
+        void fail(Exception e) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+        }
+
+        boolean isFailed() {
+            return mFailure != null;
+        }
+
+        Exception getFailure() {
+            return mFailure;
+        }
+
+        // A copy of the progress
+        Progress getProgress() {
+            Progress progress = new Progress();
+            synchronized (mProgress) {
+                progress.nbRead = mProgress.nbRead;
+                progress.nbImported = mProgress.nbImported;
+                progress.nbRejected = mProgress.nbRejected;
+                progress.nbChunksCommitted = mProgress.nbChunksCommitted;
+                progress.elapsedTime = SystemClock.elapsedRealtime() - mStart;
+            }
+            return progress;
+        }
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    // The writer always empties the queue: the wait is short
+    private static void putUninterruptibly(BlockingQueue<Future<ParsedChunk>> queue,
+                                           Future<ParsedChunk> parsedChunk) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(parsedChunk);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Future<ParsedChunk> takeUninterruptibly(BlockingQueue<Future<ParsedChunk>> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int indexOfField(String name) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // For each field, the index of its column in the CSV file (-1 if it is not in the file)
+    private static int[] mapCsvHeader(List<String> header) {
+        int[] fieldColumns = new int[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            fieldColumns[i] = header.indexOf(FIELDS[i]);
+        }
+        return fieldColumns;
+    }
+
+    private static boolean hasClosedQuotes(String line) {
+        int nbQuotes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') {
+                nbQuotes++;
+            }
+        }
+        return nbQuotes % 2 == 0;
+    }
+
+    /**
+     * Split a CSV line: the quoted values can contain commas, new lines and doubled quotes.
+     * An empty value is null.
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> values = new ArrayList<>(FIELDS.length + 1);
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                values.add(value.length() == 0 && !wasQuoted ? null : value.toString());
+                value.setLength(0);
+                wasQuoted = false;
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.length() == 0 && !wasQuoted ? null : value.toString());
+
+        return values;
+    }
+}
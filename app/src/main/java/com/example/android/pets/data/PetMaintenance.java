@@ -0,0 +1,266 @@
+package com.example.android.pets.data;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maintenance of the pets database: ANALYZE, PRAGMA optimize and incremental vacuum.
+ *
+ * The provider counts the rows it writes; when they cross the threshold, a job waits for
+ * the device to be idle ({@link PetMaintenanceService}). The job runs the maintenance
+ * by slices ({@link #runSlice()}): each slice stops at the end of the step that goes past
+ * its time budget, and the vacuum frees a bounded number of pages at a time. The job
+ * can be stopped between two slices, and the next job goes on from the same step.
+ *
+ * The number of rows written and the report of the last maintenance (sizes of the file
+ * before and after, time of each step) are kept in the preferences.
+ *
+ * The writes count their rows without any lock: they can hold the connection (in a batch)
+ * while a slice waits for it. The lock of the slices is only taken by {@link #runSlice()}.
+ */
+public class PetMaintenance {
+    public static final String LOG_TAG = PetMaintenance.class.getSimpleName();
+
+    public static final int JOB_ID = 1;
+
+    private static final String PREFERENCES_NAME = "pet_maintenance";
+
+    // The count of the rows written is saved every PERSIST_ROWS rows
+    private static final int PERSIST_ROWS = 500;
+    // Pages freed by one incremental_vacuum
+    private static final int VACUUM_PAGES = 256;
+    // Rows of each index read by ANALYZE (SQLite 3.32 and later, ignored before)
+    private static final int ANALYSIS_LIMIT = 1000;
+
+    // Steps of the maintenance
+    private static final int STEP_IDLE = 0;
+    private static final int STEP_ANALYZE = 1;
+    private static final int STEP_OPTIMIZE = 2;
+    private static final int STEP_VACUUM = 3;
+
+    // auto_vacuum mode of the incremental vacuum
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mDbHelper;
+    private final SharedPreferences mPreferences;
+    private final long mWriteThreshold;
+    private final long mSliceTime;
+
+    // Rows written since the last maintenance
+    private final AtomicLong mNbRowsWritten = new AtomicLong();
+    private final AtomicLong mNbRowsPersisted = new AtomicLong();
+    private final AtomicBoolean mJobScheduled = new AtomicBoolean();
+
+    // Maintenance in progress (guarded by mSliceLock)
+    private final Object mSliceLock = new Object();
+    private int mStep = STEP_IDLE;
+    private long mNbRowsAtStart;
+    private long mSizeBefore;
+    private long mAnalyzeTime;
+    private long mOptimizeTime;
+    private long mVacuumTime;
+    private long mNbPagesVacuumed;
+
+    /**
+     * @param context
+     * @param dbHelper       helper of the pets database
+     * @param writeThreshold number of rows written that starts a maintenance
+     * @param sliceTime      time budget (ms) of a slice
+     */
+    public PetMaintenance(@NonNull Context context, @NonNull SQLiteOpenHelper dbHelper,
+                          long writeThreshold, long sliceTime) {
+        mContext = context;
+        mDbHelper = dbHelper;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mWriteThreshold = writeThreshold;
+        mSliceTime = sliceTime;
+
+        mNbRowsWritten.set(mPreferences.getLong(PetContract.KEY_MAINTENANCE_ROWS_WRITTEN, 0));
+        mNbRowsPersisted.set(mNbRowsWritten.get());
+    }
+
+    /**
+     * Count rows written by the provider (inserted, updated or deleted), once they are committed.
+     * Never blocks: can be called while the connection is held.
+     */
+    public void onRowsWritten(int nbRows) {
+        if (nbRows <= 0) {
+            return;
+        }
+
+        long nbRowsWritten = mNbRowsWritten.addAndGet(nbRows);
+        long nbRowsPersisted = mNbRowsPersisted.get();
+        if (nbRowsWritten - nbRowsPersisted >= PERSIST_ROWS
+                && mNbRowsPersisted.compareAndSet(nbRowsPersisted, nbRowsWritten)) {
+            mPreferences.edit().putLong(PetContract.KEY_MAINTENANCE_ROWS_WRITTEN, nbRowsWritten).apply();
+        }
+
+        if (nbRowsWritten >= mWriteThreshold && mJobScheduled.compareAndSet(false, true)) {
+            scheduleJob(nbRowsWritten);
+        }
+    }
+
+    private void scheduleJob(long nbRowsWritten) {
+        JobScheduler jobScheduler = (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(mContext, PetMaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .build();
+        if (jobScheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(LOG_TAG, "The maintenance can't be scheduled");
+            mJobScheduled.set(false);
+            return;
+        }
+        Log.i(LOG_TAG, "Maintenance scheduled after " + nbRowsWritten + " rows written");
+    }
+
+    /**
+     * Run the next slice of the maintenance (a maintenance starts if none is in progress).
+     * Never called in a transaction: it waits for the connection.
+     *
+     * @return {@link PetContract#KEY_MAINTENANCE_DONE}: true when the maintenance is finished
+     */
+    @NonNull
+    public Bundle runSlice() {
+        synchronized (mSliceLock) {
+            return runSliceLocked();
+        }
+    }
+
+    private Bundle runSliceLocked() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+
+        if (mStep == STEP_IDLE) {
+            mNbRowsAtStart = mNbRowsWritten.get();
+            mSizeBefore = getFileSize(db);
+            mAnalyzeTime = 0;
+            mOptimizeTime = 0;
+            mVacuumTime = 0;
+            mNbPagesVacuumed = 0;
+            mStep = STEP_ANALYZE;
+        }
+
+        while (mStep != STEP_IDLE && SystemClock.elapsedRealtime() - start < mSliceTime) {
+            long stepStart = SystemClock.elapsedRealtime();
+            switch (mStep) {
+                case STEP_ANALYZE:
+                    PetDbHelper.executePragma(db, "PRAGMA analysis_limit = " + ANALYSIS_LIMIT);
+                    db.execSQL("ANALYZE");
+                    mAnalyzeTime += SystemClock.elapsedRealtime() - stepStart;
+                    mStep = STEP_OPTIMIZE;
+                    break;
+
+                case STEP_OPTIMIZE:
+                    // Ignored by the versions of SQLite older than 3.18
+                    PetDbHelper.executePragma(db, "PRAGMA optimize");
+                    mOptimizeTime += SystemClock.elapsedRealtime() - stepStart;
+                    mStep = STEP_VACUUM;
+                    break;
+
+                case STEP_VACUUM:
+                    boolean vacuumed = vacuumPages(db);
+                    mVacuumTime += SystemClock.elapsedRealtime() - stepStart;
+                    if (vacuumed) {
+                        finish(db);
+                    }
+                    break;
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(PetContract.KEY_MAINTENANCE_DONE, mStep == STEP_IDLE);
+        return result;
+    }
+
+    /**
+     * Free up to {@link #VACUUM_PAGES} pages at the end of the file.
+     *
+     * @return true when there is no free page anymore
+     */
+    private boolean vacuumPages(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            // A database created before the incremental mode: a full VACUUM, once,
+            // changes its mode (it can't be cut into slices)
+            Log.i(LOG_TAG, "Conversion to the incremental vacuum");
+            PetDbHelper.executePragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return true;
+        }
+
+        long nbFreePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (nbFreePages == 0) {
+            return true;
+        }
+        // Frees the pages at the end of the file, and truncates it
+        PetDbHelper.executePragma(db, "PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")");
+        mNbPagesVacuumed += Math.min(nbFreePages, VACUUM_PAGES);
+        return nbFreePages <= VACUUM_PAGES;
+    }
+
+    private void finish(SQLiteDatabase db) {
+        long sizeAfter = getFileSize(db);
+        // The rows written during the maintenance count for the next one
+        long nbRowsWritten = mNbRowsWritten.addAndGet(-mNbRowsAtStart);
+        mNbRowsPersisted.set(nbRowsWritten);
+        mJobScheduled.set(false);
+        mStep = STEP_IDLE;
+
+        mPreferences.edit()
+                .putLong(PetContract.KEY_MAINTENANCE_ROWS_WRITTEN, nbRowsWritten)
+                .putLong(PetContract.KEY_MAINTENANCE_LAST_RUN, System.currentTimeMillis())
+                .putLong(PetContract.KEY_MAINTENANCE_SIZE_BEFORE, mSizeBefore)
+                .putLong(PetContract.KEY_MAINTENANCE_SIZE_AFTER, sizeAfter)
+                .putLong(PetContract.KEY_MAINTENANCE_ANALYZE_TIME, mAnalyzeTime)
+                .putLong(PetContract.KEY_MAINTENANCE_OPTIMIZE_TIME, mOptimizeTime)
+                .putLong(PetContract.KEY_MAINTENANCE_VACUUM_TIME, mVacuumTime)
+                .putLong(PetContract.KEY_MAINTENANCE_PAGES_VACUUMED, mNbPagesVacuumed)
+                .apply();
+
+        Log.i(LOG_TAG, "Maintenance done: " + mSizeBefore + " -> " + sizeAfter + " bytes, "
+                + "ANALYZE " + mAnalyzeTime + " ms, optimize " + mOptimizeTime + " ms, "
+                + "vacuum " + mVacuumTime + " ms (" + mNbPagesVacuumed + " pages)");
+    }
+
+    /**
+     * @return the rows written since the last maintenance, and the report of the last
+     * maintenance ({@link PetContract#METHOD_MAINTENANCE_STATS})
+     */
+    @NonNull
+    public Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putLong(PetContract.KEY_MAINTENANCE_ROWS_WRITTEN, mNbRowsWritten.get());
+        stats.putLong(PetContract.KEY_MAINTENANCE_WRITE_THRESHOLD, mWriteThreshold);
+        for (String key : new String[] {
+                PetContract.KEY_MAINTENANCE_LAST_RUN,
+                PetContract.KEY_MAINTENANCE_SIZE_BEFORE,
+                PetContract.KEY_MAINTENANCE_SIZE_AFTER,
+                PetContract.KEY_MAINTENANCE_ANALYZE_TIME,
+                PetContract.KEY_MAINTENANCE_OPTIMIZE_TIME,
+                PetContract.KEY_MAINTENANCE_VACUUM_TIME,
+                PetContract.KEY_MAINTENANCE_PAGES_VACUUMED}) {
+            stats.putLong(key, mPreferences.getLong(key, 0));
+        }
+        return stats;
+    }
+
+    // The database file and its write-ahead log
+    private static long getFileSize(SQLiteDatabase db) {
+        File file = new File(db.getPath());
+        return file.length() + new File(db.getPath() + "-wal").length();
+    }
+}
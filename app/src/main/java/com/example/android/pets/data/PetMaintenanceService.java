@@ -0,0 +1,50 @@
+package com.example.android.pets.data;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Job of the database maintenance, run when the device is idle (see {@link PetMaintenance}).
+ *
+ * The slices of the maintenance run in the provider, one call after the other, on a
+ * background thread. When the system stops the job (the device is not idle anymore),
+ * the current slice ends and the job is rescheduled: the maintenance goes on
+ * from its current step.
+ */
+public class PetMaintenanceService extends JobService {
+    public static final String LOG_TAG = PetMaintenanceService.class.getSimpleName();
+
+    private volatile boolean mStopped;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mStopped = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean done = false;
+                while (!done && !mStopped) {
+                    Bundle result = getContentResolver().call(PetEntry.CONTENT_URI,
+                            PetContract.METHOD_RUN_MAINTENANCE, null, null);
+                    done = result == null || result.getBoolean(PetContract.KEY_MAINTENANCE_DONE);
+                }
+                if (!mStopped) {
+                    jobFinished(params, false);
+                }
+            }
+        }, LOG_TAG).start();
+        // The job goes on in the background thread
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.i(LOG_TAG, "Maintenance stopped: rescheduled");
+        mStopped = true;
+        return true;
+    }
+}
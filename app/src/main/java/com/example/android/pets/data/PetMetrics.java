@@ -0,0 +1,184 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and throughput counters of the {@link PetProvider}, by operation and URI match code.
+ *
+ * The counters are lock-free (atomics): recording an operation never blocks the caller.
+ * The latencies are kept in a histogram with power-of-two buckets (in microseconds),
+ * so the percentiles are approximated by the upper bound of their bucket.
+ */
+public class PetMetrics {
+    public static final String LOG_TAG = PetMetrics.class.getSimpleName();
+
+    public static final String OPERATION_QUERY = "query";
+    public static final String OPERATION_INSERT = "insert";
+    public static final String OPERATION_BULK_INSERT = "bulk_insert";
+    public static final String OPERATION_UPDATE = "update";
+    public static final String OPERATION_DELETE = "delete";
+
+    // Bucket i counts the latencies in [2^(i-1), 2^i[ microseconds: the last one is above 30 minutes
+    private static final int NB_BUCKETS = 32;
+
+    private final ConcurrentMap<String, OperationMetrics> mOperations = new ConcurrentHashMap<>();
+
+    /**
+     * Record an operation.
+     *
+     * @param operation  one of the OPERATION_ constants
+     * @param match      URI match code
+     * @param nbRows     number of rows returned or changed
+     * @param startNanos {@link System#nanoTime()} at the start of the operation
+     * @param failed     true if the operation threw an exception
+     */
+    public void record(@NonNull String operation, int match, int nbRows, long startNanos, boolean failed) {
+        record(operation, match, nbRows, 0, startNanos, failed);
+    }
+
+    /**
+     * Record an operation that can reject some of its rows (a bulk insert).
+     *
+     * @param nbRejected number of rows rejected (invalid values)
+     */
+    public void record(@NonNull String operation, int match, int nbRows, int nbRejected,
+                       long startNanos, boolean failed) {
+        long durationMicros = (System.nanoTime() - startNanos) / 1000;
+
+        String key = operation + "/" + match;
+        OperationMetrics metrics = mOperations.get(key);
+        if (metrics == null) {
+            OperationMetrics newMetrics = new OperationMetrics();
+            metrics = mOperations.putIfAbsent(key, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        metrics.record(nbRows, nbRejected, durationMicros, failed);
+    }
+
+    /**
+     * @return one Bundle by "operation/match code", with the {@link PetContract} KEY_METRICS_ keys
+     */
+    @NonNull
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, OperationMetrics> entry : mOperations.entrySet()) {
+            bundle.putBundle(entry.getKey(), entry.getValue().toBundle());
+        }
+        return bundle;
+    }
+
+    /**
+     * Set all the counters to 0. The operations running during the reset can be
+     * partially counted.
+     */
+    public void reset() {
+        for (OperationMetrics metrics : mOperations.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Counters of one operation on one URI match code.
+     */
+    private static class OperationMetrics {
+        final AtomicLong nbCalls = new AtomicLong();
+        final AtomicLong nbErrors = new AtomicLong();
+        final AtomicLong nbRows = new AtomicLong();
+        final AtomicLong nbRejected = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(NB_BUCKETS);
+
+        void record(int rows, int rejected, long durationMicros, boolean failed) {
+            nbCalls.incrementAndGet();
+            if (failed) {
+                nbErrors.incrementAndGet();
+            }
+            nbRows.addAndGet(rows);
+            nbRejected.addAndGet(rejected);
+            totalMicros.addAndGet(durationMicros);
+
+            long max;
+            do {
+                max = maxMicros.get();
+            } while (durationMicros > max && !maxMicros.compareAndSet(max, durationMicros));
+
+            histogram.incrementAndGet(bucketOf(durationMicros));
+        }
+
+        void reset() {
+            nbCalls.set(0);
+            nbErrors.set(0);
+            nbRows.set(0);
+            nbRejected.set(0);
+            totalMicros.set(0);
+            maxMicros.set(0);
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+
+        Bundle toBundle() {
+            // Copy of the histogram: the percentiles are computed on the same counts
+            long[] counts = new long[NB_BUCKETS];
+            long nbRecorded = 0;
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                nbRecorded += counts[i];
+            }
+
+            long calls = nbCalls.get();
+            Bundle bundle = new Bundle();
+            bundle.putLong(PetContract.KEY_METRICS_COUNT, calls);
+            bundle.putLong(PetContract.KEY_METRICS_ERRORS, nbErrors.get());
+            bundle.putLong(PetContract.KEY_METRICS_ROWS, nbRows.get());
+            bundle.putLong(PetContract.KEY_METRICS_REJECTED_ROWS, nbRejected.get());
+            bundle.putLong(PetContract.KEY_METRICS_TOTAL_TIME, totalMicros.get());
+            bundle.putLong(PetContract.KEY_METRICS_MEAN_TIME, calls == 0 ? 0 : totalMicros.get() / calls);
+            bundle.putLong(PetContract.KEY_METRICS_MAX_TIME, maxMicros.get());
+            bundle.putLong(PetContract.KEY_METRICS_P50_TIME, percentile(counts, nbRecorded, 50));
+            bundle.putLong(PetContract.KEY_METRICS_P90_TIME, percentile(counts, nbRecorded, 90));
+            bundle.putLong(PetContract.KEY_METRICS_P99_TIME, percentile(counts, nbRecorded, 99));
+            return bundle;
+        }
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    private static int bucketOf(long durationMicros) {
+        if (durationMicros <= 0) {
+            return 0;
+        }
+        return Math.min(NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(durationMicros));
+    }
+
+    /**
+     * @return the upper bound (microseconds) of the bucket of the percentile
+     */
+    private static long percentile(long[] counts, long nbRecorded, int percent) {
+        if (nbRecorded == 0) {
+            return 0;
+        }
+        long rank = (nbRecorded * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (counts.length - 1);
+    }
+}
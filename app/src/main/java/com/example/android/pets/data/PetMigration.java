@@ -0,0 +1,65 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+/**
+ * One step of the schema migration: it brings the database from (version - 1) to version.
+ * The steps are registered in {@link PetDbHelper} and run in the order of their versions,
+ * each one in its own transaction.
+ */
+public abstract class PetMigration {
+
+    private final int mVersion;
+    private final String mDescription;
+
+    protected PetMigration(int version, @NonNull String description) {
+        mVersion = version;
+        mDescription = description;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * Apply the changes of this version. Called inside a transaction.
+     *
+     * @param db
+     */
+    public abstract void migrate(@NonNull SQLiteDatabase db);
+
+    /**
+     * Copy-and-swap rebuild of a table, for the changes ALTER TABLE can't do
+     * (drop or change a column, add a constraint...).
+     *
+     * The new table is created with the name tableName + "_new", filled with one
+     * INSERT ... SELECT (no round-trip through Java for each row), then it replaces the old table.
+     * The indexes and the triggers of the old table are dropped with it:
+     * the caller must create them again on the new table.
+     *
+     * @param db
+     * @param tableName     table to rebuild
+     * @param sqlCreateNew  CREATE TABLE statement of the table tableName + "_new"
+     * @param newColumns    columns of the new table to fill (comma separated)
+     * @param oldColumns    matching expressions on the old table (comma separated)
+     */
+    protected static void rebuildTable(@NonNull SQLiteDatabase db,
+                                       @NonNull String tableName,
+                                       @NonNull String sqlCreateNew,
+                                       @NonNull String newColumns,
+                                       @NonNull String oldColumns) {
+        String newTableName = tableName + "_new";
+
+        db.execSQL("DROP TABLE IF EXISTS " + newTableName);
+        db.execSQL(sqlCreateNew);
+        db.execSQL("INSERT INTO " + newTableName + " (" + newColumns + ") "
+                + "SELECT " + oldColumns + " FROM " + tableName);
+        db.execSQL("DROP TABLE " + tableName);
+        db.execSQL("ALTER TABLE " + newTableName + " RENAME TO " + tableName);
+    }
+}
@@ -1,39 +1,257 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.PetChangesEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
 
 import com.example.android.pets.R;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 public class PetProvider extends ContentProvider {
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
     private PetDbHelper mDbHelper;
+    private PetChangeDispatcher mChangeDispatcher;
+
+    // Change notifications deferred while a batch is running on the current thread
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<>();
+
+    // Cache of the single pet queries
+    private static final int ROW_CACHE_SIZE = 256;
+    private final PetRowCache mRowCache = new PetRowCache(ROW_CACHE_SIZE);
+    // Cache invalidations done during the batch running on the current thread,
+    // done again after the commit (a reader may have cached a row before it)
+    private final ThreadLocal<Set<Uri>> mBatchInvalidations = new ThreadLocal<>();
+
+    // IDs of the breeds, for the writes (the pets table only keeps the ID of the breed)
+    private final PetBreedCache mBreedCache = new PetBreedCache();
+    // A selection of the caller that uses the breed runs on the view of the pets
+    private static final Pattern BREED_COLUMN = Pattern.compile("\\b" + PetEntry.COLUMN_PET_BREED + "\\b");
+
+    // Latencies and rows of the operations, by URI match code
+    private final PetMetrics mMetrics = new PetMetrics();
+    // Slowest statements, with their query plan
+    private PetSlowQueryLog mSlowQueryLog;
+
+    // "Delete all" by a swap of the pets table, with its undo window
+    private PetFastClear mFastClear;
+
+    // Tombstone mode: a deleted pet is only marked deleted, the compactor purges it later
+    private volatile boolean mTombstoneMode;
+    private PetCompactor mCompactor;
+
+    // Counts the rows written, and runs ANALYZE and the vacuum when the device is idle
+    private PetMaintenance mMaintenance;
+    // Rows written by the batch running on the current thread, counted once committed
+    private final ThreadLocal<int[]> mBatchRowsWritten = new ThreadLocal<>();
+
+    // Compiled statements of the insert, and of the update and the delete by ID
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private final PetStatementCache mStatementCache = new PetStatementCache(STATEMENT_CACHE_SIZE);
+    private volatile boolean mStatementCacheEnabled;
+
+    // How long a batch sleeps after yielding the database lock to a contending thread (ms)
+    private static final long BATCH_YIELD_DELAY = 0;
 
     // Uri matcher
     public static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     public static final int URI_MATCHER_PETS = 100;
     public static final int URI_MATCHER_PET_ID = 101;
+    public static final int URI_MATCHER_PET_SEARCH = 102;
+    public static final int URI_MATCHER_PET_STATS = 103;
+    public static final int URI_MATCHER_PET_COUNT = 104;
+    public static final int URI_MATCHER_BREED_STATS = 105;
+    public static final int URI_MATCHER_PET_EXPORT = 106;
+    public static final int URI_MATCHER_PET_CHANGES = 107;
+    public static final int URI_MATCHER_CHANGES_SEQUENCE = 108;
+
+    // Compiled once per bulk insert and re-bound for every row (and kept by the cache for the single inserts)
+    private static final String SQL_INSERT_PET =
+            "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetDbHelper.COLUMN_PET_BREED_ID + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    // Columns of the compiled statements of the cache: in the values of the caller
+    // (the text of the breed), and in the pets table (the ID of the breed)
+    private static final String[] STATEMENT_VALUES_COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+    private static final String[] STATEMENT_TABLE_COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetDbHelper.COLUMN_PET_BREED_ID,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    // Update of a pet by its ID, by set of columns (bit i for the column i of
+    // STATEMENT_TABLE_COLUMNS): same selection as the update of the other pet URIs
+    private static final String[] SQL_UPDATE_PET_BY_ID = new String[1 << STATEMENT_TABLE_COLUMNS.length];
+    private static final String SQL_DELETE_PET_BY_ID =
+            "DELETE FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + "=? AND " + PetDbHelper.SELECTION_LIVE;
+    private static final String SQL_TOMBSTONE_PET_BY_ID =
+            "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetDbHelper.COLUMN_PET_DELETED + "=1"
+            + " WHERE " + PetEntry._ID + "=? AND " + PetDbHelper.SELECTION_LIVE;
+
+    // Full-text search: the pets whose name matches (rank 0) come before
+    // the pets that only match by their breed (rank 1)
+    private static final String SQL_SEARCH_TABLES =
+            PetDbHelper.PETS_VIEW_NAME + " JOIN ("
+            + "SELECT docid, MIN(rank) AS rank FROM ("
+            + "SELECT docid, 0 AS rank FROM " + PetDbHelper.FTS_TABLE_NAME
+            + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH ?"
+            + " UNION ALL "
+            + "SELECT docid, 1 AS rank FROM " + PetDbHelper.FTS_TABLE_NAME
+            + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH ?"
+            + ") GROUP BY docid) AS matches"
+            + " ON " + PetDbHelper.PETS_VIEW_NAME + "." + PetEntry._ID + " = matches.docid";
+    private static final String SQL_SEARCH_ORDER =
+            "matches.rank, " + PetDbHelper.PETS_VIEW_NAME + "." + PetEntry.COLUMN_PET_NAME;
+
+    // The statistics are read from the summary tables (one row, maintained by triggers)
+    private static final String SQL_STATS_TABLE =
+            "(SELECT "
+            + PetStatsEntry._COUNT + ", "
+            + PetStatsEntry.COLUMN_TOTAL_WEIGHT + ", "
+            + "CASE WHEN " + PetStatsEntry._COUNT + " > 0 THEN CAST(" + PetStatsEntry.COLUMN_TOTAL_WEIGHT
+            + " AS REAL) / " + PetStatsEntry._COUNT + " ELSE 0 END AS " + PetStatsEntry.COLUMN_AVERAGE_WEIGHT + ", "
+            + PetStatsEntry.COLUMN_COUNT_MALE + ", "
+            + PetStatsEntry.COLUMN_COUNT_FEMALE + ", "
+            + PetStatsEntry.COLUMN_COUNT_UNKNOWN
+            + " FROM " + PetDbHelper.STATS_TABLE_NAME + ")";
+    private static final String SQL_BREED_STATS_TABLE =
+            "(SELECT "
+            + "NULLIF(" + PetStatsEntry.COLUMN_BREED + ", '') AS " + PetStatsEntry.COLUMN_BREED + ", "
+            + PetStatsEntry._COUNT
+            + " FROM " + PetDbHelper.BREED_STATS_TABLE_NAME + ")";
+
+    // The pets changed since a sequence, with their current values (the deleted pets
+    // are not in the pets table anymore, or are tombstones). The pets and the breeds are
+    // joined directly, by their primary keys: a join on the view materializes the view
+    // and scans all the pets (see PetQueryPlansTest)
+    static final String SQL_CHANGES_TABLE =
+            "(SELECT "
+            + "changes." + PetDbHelper.COLUMN_CHANGE_PET_ID + " AS " + PetChangesEntry._ID + ", "
+            + "MAX(changes." + PetChangesEntry.COLUMN_SEQUENCE + ") AS " + PetChangesEntry.COLUMN_SEQUENCE + ", "
+            + PetEntry.TABLE_NAME + "." + PetEntry._ID + " IS NULL AS " + PetChangesEntry.COLUMN_DELETED + ", "
+            + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", "
+            + PetDbHelper.BREEDS_TABLE_NAME + "." + PetEntry.COLUMN_PET_BREED + " AS " + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT
+            + " FROM " + PetChangesEntry.TABLE_NAME + " AS changes"
+            + " LEFT JOIN " + PetEntry.TABLE_NAME
+            + " ON " + PetEntry.TABLE_NAME + "." + PetEntry._ID + " = changes." + PetDbHelper.COLUMN_CHANGE_PET_ID
+            + " AND " + PetEntry.TABLE_NAME + "." + PetDbHelper.SELECTION_LIVE
+            + " LEFT JOIN " + PetDbHelper.BREEDS_TABLE_NAME
+            + " ON " + PetDbHelper.BREEDS_TABLE_NAME + "." + BaseColumns._ID
+            + " = " + PetEntry.TABLE_NAME + "." + PetDbHelper.COLUMN_PET_BREED_ID
+            + " WHERE changes." + PetChangesEntry.COLUMN_SEQUENCE + " > ?"
+            + " GROUP BY changes." + PetDbHelper.COLUMN_CHANGE_PET_ID + ")";
+    // Two sub-queries: SQLite only reads MIN or MAX from the index when it is alone in its query
+    private static final String SQL_CHANGES_SEQUENCE_TABLE =
+            "(SELECT "
+            + "IFNULL((SELECT MIN(" + PetChangesEntry.COLUMN_SEQUENCE + ") FROM " + PetChangesEntry.TABLE_NAME + "), 0) AS "
+            + PetChangesEntry.COLUMN_FIRST_SEQUENCE + ", "
+            + "IFNULL((SELECT MAX(" + PetChangesEntry.COLUMN_SEQUENCE + ") FROM " + PetChangesEntry.TABLE_NAME + "), 0) AS "
+            + PetChangesEntry.COLUMN_LAST_SEQUENCE + ")";
+
+    // Formats of the export
+    private static final String[] EXPORT_TYPES = {PetEntry.EXPORT_TYPE_CSV, PetEntry.EXPORT_TYPE_JSON};
+    private final PetExporter mExporter = new PetExporter();
+
+    static final String[] ALL_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
 
     static {
+        for (int columns = 1; columns < SQL_UPDATE_PET_BY_ID.length; columns++) {
+            SQL_UPDATE_PET_BY_ID[columns] = buildUpdatePetById(columns);
+        }
 
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, URI_MATCHER_PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", URI_MATCHER_PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH + "/*", URI_MATCHER_PET_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, URI_MATCHER_PET_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_COUNT, URI_MATCHER_PET_COUNT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS,
+                URI_MATCHER_BREED_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, URI_MATCHER_PET_EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, URI_MATCHER_PET_CHANGES);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES + "/" + PetContract.PATH_SEQUENCE,
+                URI_MATCHER_CHANGES_SEQUENCE);
     }
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
+        mDbHelper = new PetDbHelper(getContext(),
+                getContext().getResources().getBoolean(R.bool.pets_concurrent_mode));
+        mChangeDispatcher = new PetChangeDispatcher(getContext().getContentResolver());
+        mSlowQueryLog = new PetSlowQueryLog(
+                getContext().getResources().getInteger(R.integer.pets_slow_query_log_size),
+                getContext().getResources().getInteger(R.integer.pets_slow_query_threshold_ms));
+        mFastClear = new PetFastClear(mDbHelper,
+                getContext().getResources().getInteger(R.integer.pets_undo_clear_window_ms));
+        // A trash left by the last process is dropped in the background
+        mFastClear.reclaimLater();
+        mTombstoneMode = getContext().getResources().getBoolean(R.bool.pets_tombstone_mode);
+        mCompactor = new PetCompactor(mDbHelper,
+                getContext().getResources().getInteger(R.integer.pets_compaction_batch_size),
+                getContext().getResources().getInteger(R.integer.pets_compaction_idle_delay_ms));
+        // The tombstones left by the last process
+        mCompactor.onTombstones();
+        mMaintenance = new PetMaintenance(getContext(), mDbHelper,
+                getContext().getResources().getInteger(R.integer.pets_maintenance_write_threshold),
+                getContext().getResources().getInteger(R.integer.pets_maintenance_slice_ms));
+        mStatementCacheEnabled = getContext().getResources().getBoolean(R.bool.pets_statement_cache);
         return true;
     }
 
@@ -52,38 +270,117 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projections, @Nullable String selection,
                         @Nullable String[] selectionArgs, @Nullable String sortOrder) {
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        Cursor queryCursor = null;
+        try {
+            queryCursor = queryUri(match, uri, projections, selection, selectionArgs, sortOrder);
+            return queryCursor;
+        } finally {
+            // Counting the rows runs the query: SQLite only steps through it when the cursor is first read
+            mMetrics.record(PetMetrics.OPERATION_QUERY, match,
+                    queryCursor == null ? 0 : queryCursor.getCount(), start, queryCursor == null);
+        }
+    }
+
+    private Cursor queryUri(int match, @NonNull Uri uri, @Nullable String[] projections, @Nullable String selection,
+                            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        SQLiteDatabase db = getReaderDatabase();
         Cursor queryCusror;
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             case URI_MATCHER_PETS :
+                String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                if (limit != null) {
+                    // SELECT a page of the DataSet: seek after the last ID of the previous page,
+                    // the primary key index gives the rows already sorted
+                    String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER);
+                    if (afterId != null) {
+                        selection = appendSelection(selection, PetEntry._ID + ">?");
+                        selectionArgs = appendSelectionArgs(selectionArgs,
+                                String.valueOf(Long.parseLong(afterId)));
+                    }
+                    if (afterId != null || TextUtils.isEmpty(sortOrder)) {
+                        sortOrder = PetEntry._ID + " ASC";
+                    }
+                    limit = String.valueOf(Integer.parseInt(limit));
+                }
+
                 // SELECT a DataSet
-                queryCusror = db.query(PetContract.PetEntry.TABLE_NAME,
+                queryCusror = queryTable(db, PetDbHelper.PETS_VIEW_NAME,
                         projections,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder
+                        sortOrder,
+                        limit
                         );
                 break;
 
             case URI_MATCHER_PET_ID:
-                // SELECT a specific ID
+                // SELECT a specific ID (not from the cache in a batch: the cache has the rows
+                // before the batch, and must not get the rows the batch has not committed)
+                long id = ContentUris.parseId(uri);
+                if (PetRowCache.canServe(projections) && !isInBatch()) {
+                    queryCusror = queryPetById(db, id, projections);
+                    break;
+                }
+
                 selection = PetContract.PetEntry._ID + "=?";
-                Log.e(LOG_TAG, String.valueOf(ContentUris.parseId(uri)));
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                queryCusror = db.query(PetContract.PetEntry.TABLE_NAME,
+                selectionArgs = new String[] {String.valueOf(id)};
+                queryCusror = queryTable(db, PetDbHelper.PETS_VIEW_NAME,
                         projections,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder
+                        sortOrder,
+                        null
                 );
                 break;
 
+            case URI_MATCHER_PET_SEARCH:
+                // SELECT the pets matching the words of the search
+                queryCusror = searchPets(db, uri, projections, selection, selectionArgs, sortOrder);
+                break;
+
+            case URI_MATCHER_PET_STATS:
+                // SELECT the statistics
+                queryCusror = queryTable(db, SQL_STATS_TABLE,
+                        projections, selection, selectionArgs, sortOrder, null);
+                break;
+
+            case URI_MATCHER_PET_COUNT:
+                // SELECT the number of pets
+                queryCusror = queryTable(db, PetDbHelper.STATS_TABLE_NAME,
+                        new String[] {PetStatsEntry._COUNT}, null, null, null, null);
+                break;
+
+            case URI_MATCHER_BREED_STATS:
+                // SELECT the number of pets by breed
+                queryCusror = queryTable(db, SQL_BREED_STATS_TABLE,
+                        projections, selection, selectionArgs,
+                        TextUtils.isEmpty(sortOrder) ? PetStatsEntry._COUNT + " DESC" : sortOrder, null);
+                break;
+
+            case URI_MATCHER_PET_CHANGES:
+                // SELECT the pets changed since a sequence: the sequence is the first argument
+                String since = uri.getQueryParameter(PetChangesEntry.QUERY_PARAMETER_SINCE);
+                String[] changesArgs = new String[] {String.valueOf(since == null ? 0 : Long.parseLong(since))};
+                if (selectionArgs != null) {
+                    for (String arg : selectionArgs) {
+                        changesArgs = appendSelectionArgs(changesArgs, arg);
+                    }
+                }
+                queryCusror = queryTable(db, SQL_CHANGES_TABLE,
+                        projections, selection, changesArgs,
+                        TextUtils.isEmpty(sortOrder) ? PetChangesEntry.COLUMN_SEQUENCE + " ASC" : sortOrder, null);
+                break;
+
+            case URI_MATCHER_CHANGES_SEQUENCE:
+                // SELECT the first and the last sequences of the log
+                queryCusror = queryTable(db, SQL_CHANGES_SEQUENCE_TABLE,
+                        projections, null, null, null, null);
+                break;
+
             default:
                 // There is no PATTERN match
                 Log.e(LOG_TAG, "There is no pattern match");
@@ -101,6 +398,97 @@ public class PetProvider extends ContentProvider {
         return queryCusror;
     }
 
+    /**
+     * Single pet query, served by the row cache when possible.
+     */
+    private Cursor queryPetById(@NonNull SQLiteDatabase db, long id, @Nullable String[] projections) {
+        Cursor cachedCursor = mRowCache.get(id, projections);
+        if (cachedCursor != null) {
+            return cachedCursor;
+        }
+
+        // Read the whole row, to cache it
+        long generation = mRowCache.getGeneration();
+        Object[] row = null;
+        Cursor cursor = queryTable(db, PetDbHelper.PETS_VIEW_NAME,
+                ALL_COLUMNS,
+                PetEntry._ID + "=?",
+                new String[] {String.valueOf(id)},
+                null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                row = PetRowCache.readRow(cursor);
+                mRowCache.put(id, row, generation);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return PetRowCache.toCursor(row, projections);
+    }
+
+    private Cursor searchPets(@NonNull SQLiteDatabase db,
+                              @NonNull Uri uri,
+                              @Nullable String[] projections,
+                              @Nullable String selection,
+                              @Nullable String[] selectionArgs,
+                              @Nullable String sortOrder) {
+        if (projections == null) {
+            projections = ALL_COLUMNS;
+        }
+
+        // Each word becomes a prefix term ("ter*"): all the terms must match
+        StringBuilder anyColumnMatch = new StringBuilder();
+        StringBuilder nameMatch = new StringBuilder();
+        for (String word : uri.getLastPathSegment().split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (anyColumnMatch.length() > 0) {
+                anyColumnMatch.append(' ');
+                nameMatch.append(' ');
+            }
+            anyColumnMatch.append(word).append('*');
+            nameMatch.append(PetEntry.COLUMN_PET_NAME).append(':').append(word).append('*');
+        }
+
+        if (anyColumnMatch.length() == 0) {
+            // Nothing to search
+            return new MatrixCursor(projections, 0);
+        }
+
+        // The columns of the pets table are qualified: they are also the columns of the FTS table
+        String[] columns = new String[projections.length];
+        for (int i = 0; i < projections.length; i++) {
+            columns[i] = PetDbHelper.PETS_VIEW_NAME + "." + projections[i] + " AS " + projections[i];
+        }
+
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            limit = String.valueOf(Integer.parseInt(limit));
+        }
+
+        String sql = SQLiteQueryBuilder.buildQueryString(false,
+                SQL_SEARCH_TABLES,
+                columns,
+                selection,
+                null,
+                null,
+                TextUtils.isEmpty(sortOrder) ? SQL_SEARCH_ORDER : sortOrder,
+                limit);
+
+        // The MATCH arguments come first in the SQL, before the selection arguments
+        String[] args = new String[] {nameMatch.toString(), anyColumnMatch.toString()};
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                args = appendSelectionArgs(args, arg);
+            }
+        }
+
+        return rawQuery(db, sql, args);
+    }
+
     /**
      * ***************** INSERT
      *
@@ -111,8 +499,23 @@ public class PetProvider extends ContentProvider {
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues contentValues) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        Uri newUri = null;
+        boolean failed = true;
+        try {
+            newUri = insertUri(match, uri, contentValues);
+            failed = false;
+            return newUri;
+        } finally {
+            mMetrics.record(PetMetrics.OPERATION_INSERT, match, newUri == null ? 0 : 1, start, failed);
+            onRowsWritten(newUri == null ? 0 : 1);
+        }
+    }
+
+    private Uri insertUri(int match, @NonNull Uri uri, @Nullable ContentValues contentValues) {
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             case URI_MATCHER_PETS :
                 // INSERT a pet
                 return insertPet(uri, contentValues);
@@ -127,18 +530,29 @@ public class PetProvider extends ContentProvider {
 
     private Uri insertPet(@NonNull Uri uri, @Nullable ContentValues contentValues) {
         // Test the values before enter them in the db
-        if (!isAllValid(contentValues)) {
+        if (!PetValidator.isAllValid(contentValues, true)) {
             Log.e(LOG_TAG, R.string.insert_error + " - " + uri);
             return null;
         }
 
-        // Format the values
-        contentValues = formatValues(contentValues);
-
         // Get a SQLiteDatabase object
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        long id = db.insert(PetContract.PetEntry.TABLE_NAME, null, contentValues);
+        long id;
+        boolean committed = false;
+        // The breed is read (or inserted) in the transaction of the pet
+        db.beginTransaction();
+        try {
+            if (mStatementCacheEnabled && getColumns(contentValues, STATEMENT_VALUES_COLUMNS) > 0) {
+                id = insertPetStatement(db, contentValues);
+            } else {
+                id = db.insert(PetContract.PetEntry.TABLE_NAME, null, toPetValues(db, contentValues));
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            endTransaction(db, committed);
+        }
 
         if (id == -1){
             Log.e(LOG_TAG, R.string.insert_error + " - " + uri);
@@ -146,12 +560,223 @@ public class PetProvider extends ContentProvider {
         }
 
         // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end
         return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * ***************** BULK INSERT
+     *
+     * All the rows are inserted in a single transaction through one compiled statement,
+     * and the listeners are notified only once at the end.
+     * Invalid rows are skipped: the caller that needs the number of rejected rows uses
+     * {@link PetContract#METHOD_BULK_INSERT} (the rejected rows are also in the metrics).
+     *
+     * @param uri
+     * @param values
+     * @return the number of rows inserted
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        return bulkInsertCounted(uri, values)[COUNT_ACCEPTED];
+    }
+
+    // Indexes of the counts of a bulk insert
+    private static final int COUNT_ACCEPTED = 0;
+    private static final int COUNT_REJECTED = 1;
+
+    /**
+     * @return the number of rows inserted ({@link #COUNT_ACCEPTED}) and rejected ({@link #COUNT_REJECTED})
+     */
+    private int[] bulkInsertCounted(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int[] counts = new int[2];
+        boolean failed = true;
+        try {
+            bulkInsertUri(match, uri, values, counts);
+            failed = false;
+            return counts;
+        } finally {
+            mMetrics.record(PetMetrics.OPERATION_BULK_INSERT, match,
+                    counts[COUNT_ACCEPTED], counts[COUNT_REJECTED], start, failed);
+            onRowsWritten(counts[COUNT_ACCEPTED]);
+        }
+    }
+
+    private void bulkInsertUri(int match, @NonNull Uri uri, @NonNull ContentValues[] values, int[] counts) {
+
+        switch (match) {
+            case URI_MATCHER_PETS :
+                // INSERT several pets
+                bulkInsertPets(uri, values, counts);
+                return;
+
+            default:
+                // There is no PATTERN match
+                Log.e(LOG_TAG, "There is no pattern match");
+                throw new IllegalArgumentException((getContext().getString(R.string.Uri_error)) + uri);
+        }
+    }
+
+    private void bulkInsertPets(@NonNull Uri uri, @NonNull ContentValues[] values, int[] counts) {
+        int nbAccepted = 0;
+        int nbRejected = 0;
+
+        // Get a SQLiteDatabase object
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        boolean committed = false;
+        SQLiteStatement insertStatement = null;
+        db.beginTransaction();
+        try {
+            // Compiled in the try: if it fails, the transaction is ended
+            insertStatement = db.compileStatement(SQL_INSERT_PET);
+            for (ContentValues contentValues : values) {
+                // Test the values before enter them in the db
+                if (!PetValidator.isAllValid(contentValues, true)) {
+                    nbRejected++;
+                    continue;
+                }
+
+                // Format the values while binding them
+                Long breedId = mBreedCache.getId(db, (String) contentValues.get(PetEntry.COLUMN_PET_BREED));
+                insertStatement.clearBindings();
+                insertStatement.bindString(1, ((String) contentValues.get(PetEntry.COLUMN_PET_NAME)).trim());
+                if (breedId == null) {
+                    insertStatement.bindNull(2);
+                } else {
+                    insertStatement.bindLong(2, breedId);
+                }
+                insertStatement.bindLong(3, PetValidator.asInt(contentValues.get(PetEntry.COLUMN_PET_GENDER)));
+                if (contentValues.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+                    insertStatement.bindLong(4, PetValidator.asInt(contentValues.get(PetEntry.COLUMN_PET_WEIGHT)));
+                } else {
+                    insertStatement.bindLong(4, 0);
+                }
+
+                try {
+                    if (insertStatement.executeInsert() == -1) {
+                        nbRejected++;
+                    } else {
+                        nbAccepted++;
+                    }
+                } catch (SQLiteConstraintException e) {
+                    nbRejected++;
+                }
+            }
+
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            if (insertStatement != null) {
+                insertStatement.close();
+            }
+            endTransaction(db, committed);
+        }
+        counts[COUNT_ACCEPTED] = nbAccepted;
+        counts[COUNT_REJECTED] = nbRejected;
+
+        Log.i(LOG_TAG, "Bulk insert - accepted: " + nbAccepted + ", rejected: " + nbRejected + " - " + uri);
+
+        if (nbAccepted > 0) {
+            // Notify all listeners only once for the whole set of rows
+            notifyChange(uri);
+        }
+    }
+
+    /**
+     * {@link PetContract#METHOD_BULK_INSERT}: a bulk insert that gives the number of rows
+     * inserted and rejected.
+     */
+    @NonNull
+    private Bundle bulkInsertWithCounts(@Nullable Bundle extras) {
+        Parcelable[] parcelables = extras == null ? null : extras.getParcelableArray(PetContract.KEY_BULK_INSERT_VALUES);
+        if (parcelables == null) {
+            throw new IllegalArgumentException("No " + PetContract.KEY_BULK_INSERT_VALUES + " to insert");
+        }
+        ContentValues[] values = new ContentValues[parcelables.length];
+        for (int i = 0; i < parcelables.length; i++) {
+            values[i] = (ContentValues) parcelables[i];
+        }
+
+        int[] counts = bulkInsertCounted(PetEntry.CONTENT_URI, values);
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_ROWS_ACCEPTED, counts[COUNT_ACCEPTED]);
+        result.putInt(PetContract.KEY_ROWS_REJECTED, counts[COUNT_REJECTED]);
+        return result;
+    }
+
+    /**
+     * ***************** APPLY BATCH
+     *
+     * The whole batch runs in a single transaction. Operations flagged with
+     * withYieldAllowed(true) are yield points where other threads can take the lock.
+     * The change notifications are de-duplicated and sent once, after the commit.
+     *
+     * @param operations
+     * @return the results of the operations
+     * @throws OperationApplicationException
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        // Get a SQLiteDatabase object
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        final int nbOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[nbOperations];
+        final Set<Uri> pendingNotifications = new LinkedHashSet<>();
+        final Set<Uri> pendingInvalidations = new LinkedHashSet<>();
+
+        final int[] rowsWritten = new int[1];
+
+        mBatchNotifications.set(pendingNotifications);
+        mBatchInvalidations.set(pendingInvalidations);
+        mBatchRowsWritten.set(rowsWritten);
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < nbOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()
+                        && db.yieldIfContendedSafely(BATCH_YIELD_DELAY)) {
+                    // The operations before the yield point are committed
+                    mMaintenance.onRowsWritten(rowsWritten[0]);
+                    rowsWritten[0] = 0;
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            endTransaction(db, committed);
+            mBatchRowsWritten.remove();
+            if (committed) {
+                mMaintenance.onRowsWritten(rowsWritten[0]);
+            }
+            mBatchNotifications.remove();
+            mBatchInvalidations.remove();
+
+            for (Uri uri : pendingInvalidations) {
+                invalidateCachedRows(uri);
+            }
+
+            // Notify each URI once, even if the batch failed after a yield point
+            // (the operations before the yield are already committed)
+            for (Uri uri : pendingNotifications) {
+                notifyChange(uri);
+            }
+        }
+
+        return results;
+    }
+
     /**
      * ***************  UPDATE
      *
@@ -166,8 +791,25 @@ public class PetProvider extends ContentProvider {
                       @Nullable ContentValues contentValues,
                       @Nullable String selection,
                       @Nullable String[] selectionArgs) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int nbRows = 0;
+        boolean failed = true;
+        try {
+            nbRows = updateUri(match, uri, contentValues, selection, selectionArgs);
+            failed = false;
+            return nbRows;
+        } finally {
+            mMetrics.record(PetMetrics.OPERATION_UPDATE, match, nbRows, start, failed);
+            onRowsWritten(nbRows);
+        }
+    }
 
-        final int match = sUriMatcher.match(uri);
+    private int updateUri(int match,
+                          @NonNull Uri uri,
+                          @Nullable ContentValues contentValues,
+                          @Nullable String selection,
+                          @Nullable String[] selectionArgs) {
         switch (match) {
             case URI_MATCHER_PETS:
                 return updatePet(uri, contentValues, selection, selectionArgs);
@@ -188,33 +830,120 @@ public class PetProvider extends ContentProvider {
                           @Nullable String[] selectionArgs){
 
         // If there are no values to update, then don't try to update the database
-        if (contentValues.size() == 0) {
+        if (contentValues == null || contentValues.size() == 0) {
             Log.e(LOG_TAG, "The UPDATE contentValues is empty");
             return 0;
         }
 
-        // Test the values before enter them in the db
-        if (!isAllValid(contentValues)) {
+        // Test the values before enter them in the db: only the columns to update
+        if (!PetValidator.isAllValid(contentValues, false)) {
             Log.e(LOG_TAG, R.string.update_error + " - " + uri);
             return 0;
         }
 
-        // Format the values
-        contentValues = formatValues(contentValues);
-
         // Get a SQLiteDatabase object
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        int rowsUpdated = db.update(PetContract.PetEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+        int rowsUpdated;
+        boolean committed = false;
+        // The breed is read (or inserted) in the transaction of the update
+        db.beginTransaction();
+        try {
+            rowsUpdated = updatePetValues(uri, db, contentValues, selection, selectionArgs);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            endTransaction(db, committed);
+        }
 
         if (rowsUpdated <= 0){
-            Log.e(LOG_TAG, R.string.update_error + " - " + uri);
+            Log.i(LOG_TAG, "No pet changed by the update - " + uri);
         }
         else {
+            invalidateCachedRows(uri);
+
             // Notify all the loaders associated to this URI that the data changes
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+        }
+
+        return rowsUpdated;
+    }
+
+    /**
+     * Write the values of an update (the values of the caller, with the text of the breed).
+     *
+     * @return the number of pets updated
+     */
+    private int updatePetValues(@NonNull Uri uri,
+                                @NonNull SQLiteDatabase db,
+                                @NonNull ContentValues contentValues,
+                                @Nullable String selection,
+                                @Nullable String[] selectionArgs) {
+        // A pet URI: the compiled statement of its columns
+        int columns = mStatementCacheEnabled && sUriMatcher.match(uri) == URI_MATCHER_PET_ID
+                ? getColumns(contentValues, STATEMENT_VALUES_COLUMNS) : 0;
+        if (columns > 0) {
+            return updatePetById(uri, db, contentValues, columns);
         }
+        contentValues = toPetValues(db, contentValues);
+
+        // The tombstones are not pets anymore
+        selection = appendSelection(toPetsSelection(selection), PetDbHelper.SELECTION_LIVE);
 
+        // Only the columns in the values are updated, and only in the rows where
+        // at least one of them really changes: an unchanged row is not written again
+        StringBuilder changedClause = new StringBuilder("(");
+        for (String column : contentValues.keySet()) {
+            Object value = contentValues.get(column);
+            if (changedClause.length() > 1) {
+                changedClause.append(" OR ");
+            }
+            changedClause.append(column);
+            if (value == null) {
+                changedClause.append(" IS NOT NULL");
+            } else {
+                changedClause.append(" IS NOT ?");
+                selectionArgs = appendSelectionArgs(selectionArgs, value.toString());
+            }
+        }
+        changedClause.append(')');
+        selection = appendSelection(selection, changedClause.toString());
+
+        long start = System.nanoTime();
+        int rowsUpdated = db.update(PetContract.PetEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+        recordSlowUpdate(db, contentValues, selection, selectionArgs, rowsUpdated, start);
+        return rowsUpdated;
+    }
+
+    /**
+     * Update of one pet by its ID, with the compiled statement of the columns of the values.
+     * The values of the caller are bound as they are formatted (no copy of the values).
+     *
+     * @param columns the columns of the values (see {@link #getColumns}), the same bits
+     *                in {@link #STATEMENT_VALUES_COLUMNS} and {@link #STATEMENT_TABLE_COLUMNS}
+     * @return the number of pets updated (0 or 1)
+     */
+    private int updatePetById(@NonNull Uri uri,
+                              @NonNull SQLiteDatabase db,
+                              @NonNull ContentValues contentValues,
+                              int columns) {
+        // The new values, the ID, then the values again for the clause of the changed row
+        Object[] values = new Object[Integer.bitCount(columns)];
+        int nbValues = 0;
+        for (int i = 0; i < STATEMENT_TABLE_COLUMNS.length; i++) {
+            if ((columns & (1 << i)) != 0) {
+                values[nbValues++] = getTableValue(db, contentValues, STATEMENT_VALUES_COLUMNS[i]);
+            }
+        }
+        Object[] args = new Object[2 * nbValues + 1];
+        System.arraycopy(values, 0, args, 0, nbValues);
+        args[nbValues] = ContentUris.parseId(uri);
+        System.arraycopy(values, 0, args, nbValues + 1, nbValues);
+
+        String sql = SQL_UPDATE_PET_BY_ID[columns];
+        long start = System.nanoTime();
+        int rowsUpdated = executeUpdateDelete(db, sql, args);
+        mSlowQueryLog.record(db, sql, args, rowsUpdated, (System.nanoTime() - start) / 1000000);
         return rowsUpdated;
     }
 
@@ -228,30 +957,306 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int nbRows = 0;
+        boolean failed = true;
+        try {
+            nbRows = deleteUri(match, uri, selection, selectionArgs);
+            failed = false;
+            return nbRows;
+        } finally {
+            mMetrics.record(PetMetrics.OPERATION_DELETE, match, nbRows, start, failed);
+            onRowsWritten(nbRows);
+        }
+    }
 
-        final int match = sUriMatcher.match(uri);
+    private int deleteUri(int match, @NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
         switch (match) {
             case URI_MATCHER_PETS:
-                // Notify all the loaders associated to this URI that the data changes
-                getContext().getContentResolver().notifyChange(uri, null);
-
+                if (TextUtils.isEmpty(selection)) {
+                    // Delete all the pets: the table is swapped for an empty one
+                    return clearPets(uri);
+                }
                 // Delete all rows that match the selection and selection args
-                return db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                return deletePet(uri, selection, selectionArgs);
             case URI_MATCHER_PET_ID:
-                // Notify all the loaders associated to this URI that the data changes
-                getContext().getContentResolver().notifyChange(uri, null);
-
                 // Delete a single row given by the ID in the URI
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                return deletePet(uri, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException((getContext().getString(R.string.Uri_error)) + uri);
         }
     }
 
+    private int deletePet(@NonNull Uri uri,
+                          @Nullable String selection,
+                          @Nullable String[] selectionArgs) {
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        selection = appendSelection(toPetsSelection(selection), PetDbHelper.SELECTION_LIVE);
+
+        long start = System.nanoTime();
+        int rowsDeleted;
+        String sql;
+        if (mStatementCacheEnabled && sUriMatcher.match(uri) == URI_MATCHER_PET_ID) {
+            // A pet URI: the compiled statement of the delete by ID
+            sql = mTombstoneMode ? SQL_TOMBSTONE_PET_BY_ID : SQL_DELETE_PET_BY_ID;
+            rowsDeleted = executeUpdateDelete(db, sql, selectionArgs);
+        } else if (mTombstoneMode) {
+            // The pets are only marked deleted: the triggers take them out of the view,
+            // the FTS table and the statistics, and PetCompactor purges them later
+            ContentValues tombstone = new ContentValues();
+            tombstone.put(PetDbHelper.COLUMN_PET_DELETED, 1);
+            rowsDeleted = db.update(PetEntry.TABLE_NAME, tombstone, selection, selectionArgs);
+            sql = "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetDbHelper.COLUMN_PET_DELETED + "=1"
+                    + " WHERE " + selection;
+        } else {
+            rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            sql = "DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + selection;
+        }
+        long durationMillis = (System.nanoTime() - start) / 1000000;
+        if (mSlowQueryLog.isSlow(durationMillis)) {
+            mSlowQueryLog.record(db, sql, selectionArgs, rowsDeleted, durationMillis);
+        }
+
+        if (rowsDeleted > 0) {
+            invalidateCachedRows(uri);
+
+            // Notify all the loaders associated to this URI that the data changes,
+            // now that the rows are really gone
+            notifyChange(uri);
+
+            if (mTombstoneMode) {
+                mCompactor.onTombstones();
+            }
+        }
+
+        return rowsDeleted;
+    }
+
+    private int clearPets(@NonNull Uri uri) {
+        int rowsDeleted = mFastClear.clear(mDbHelper.getWritableDatabase());
+        invalidateCachedRows(uri);
+        notifyChange(uri);
+        return rowsDeleted;
+    }
+
+    /**
+     * ****************** EXPORT
+     *
+     * The pets are streamed into a pipe by a background thread: the caller reads
+     * the export while it is written.
+     *
+     * @param uri
+     * @param mode
+     * @return
+     * @throws FileNotFoundException
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != URI_MATCHER_PET_EXPORT) {
+            throw new FileNotFoundException((getContext().getString(R.string.Uri_error)) + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The export is read-only: " + uri);
+        }
+
+        return openPipeHelper(uri, PetEntry.EXPORT_TYPE_CSV, null, getReaderDatabase(), mExporter);
+    }
+
+    @Nullable
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri,
+                                                  @NonNull String mimeTypeFilter,
+                                                  @Nullable Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != URI_MATCHER_PET_EXPORT) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+
+        String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
+        if (mimeTypes == null) {
+            throw new FileNotFoundException("No export in the format " + mimeTypeFilter);
+        }
+
+        ParcelFileDescriptor pipe = openPipeHelper(uri, mimeTypes[0], opts, getReaderDatabase(), mExporter);
+        return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    @Nullable
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != URI_MATCHER_PET_EXPORT) {
+            return null;
+        }
+
+        ArrayList<String> mimeTypes = new ArrayList<>();
+        for (String mimeType : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(mimeType, mimeTypeFilter)) {
+                mimeTypes.add(mimeType);
+            }
+        }
+        return mimeTypes.isEmpty() ? null : mimeTypes.toArray(new String[mimeTypes.size()]);
+    }
+
+    /**
+     * ****************** CALL
+     *
+     * {@link PetContract#METHOD_ROW_CACHE_STATS}: counters of the single pet cache.
+     * {@link PetContract#METHOD_METRICS}: latencies and rows of the operations, with the counters
+     * of the cache and of the notifications. {@link PetContract#METHOD_RESET_METRICS} resets them.
+     * {@link PetContract#METHOD_SLOW_QUERIES}: the slow query log.
+     * {@link PetContract#METHOD_BULK_INSERT}: a bulk insert, with the rows inserted and rejected.
+     * {@link PetContract#METHOD_UNDO_CLEAR_PETS}: put back the pets of the last "delete all".
+     * {@link PetContract#METHOD_COMPACTION_STATS}: the tombstones and the compactions
+     * ({@link PetContract#METHOD_COMPACT_TOMBSTONES} purges the tombstones first).
+     * {@link PetContract#METHOD_RUN_MAINTENANCE}: one slice of the maintenance ({@link PetMaintenanceService}).
+     * {@link PetContract#METHOD_MAINTENANCE_STATS}: the rows written and the last maintenance.
+     *
+     * @param method
+     * @param arg
+     * @param extras
+     * @return
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        switch (method) {
+            case PetContract.METHOD_ROW_CACHE_STATS:
+                return getRowCacheStats();
+
+            case PetContract.METHOD_METRICS:
+                Bundle metrics = mMetrics.toBundle();
+                metrics.putBundle(PetContract.KEY_METRICS_ROW_CACHE, getRowCacheStats());
+                metrics.putBundle(PetContract.KEY_METRICS_STATEMENT_CACHE, getStatementCacheStats());
+
+                Bundle notifications = new Bundle();
+                notifications.putLong(PetContract.KEY_NOTIFICATIONS_REQUESTED, mChangeDispatcher.getNbRequested());
+                notifications.putLong(PetContract.KEY_NOTIFICATIONS_DISPATCHED, mChangeDispatcher.getNbDispatched());
+                notifications.putLong(PetContract.KEY_NOTIFICATIONS_SUPPRESSED, mChangeDispatcher.getNbSuppressed());
+                metrics.putBundle(PetContract.KEY_METRICS_NOTIFICATIONS, notifications);
+                return metrics;
+
+            case PetContract.METHOD_RESET_METRICS:
+                mMetrics.reset();
+                mRowCache.resetCounters();
+                mStatementCache.resetCounters();
+                mChangeDispatcher.resetCounters();
+                mSlowQueryLog.clear();
+                return null;
+
+            case PetContract.METHOD_SLOW_QUERIES:
+                PetSlowQueryLog.Entry[] entries = mSlowQueryLog.getEntries();
+                String[] slowQueries = new String[entries.length];
+                for (int i = 0; i < entries.length; i++) {
+                    slowQueries[i] = entries[i].toString();
+                }
+                Bundle slowQueryLog = new Bundle();
+                slowQueryLog.putStringArray(PetContract.KEY_SLOW_QUERIES, slowQueries);
+                slowQueryLog.putLong(PetContract.KEY_SLOW_QUERY_THRESHOLD, mSlowQueryLog.getThreshold());
+                return slowQueryLog;
+
+            case PetContract.METHOD_BULK_INSERT:
+                return bulkInsertWithCounts(extras);
+
+            case PetContract.METHOD_UNDO_CLEAR_PETS:
+                return undoClearPets();
+
+            case PetContract.METHOD_COMPACT_TOMBSTONES:
+                mCompactor.compactNow();
+                return mCompactor.getStats();
+
+            case PetContract.METHOD_COMPACTION_STATS:
+                return mCompactor.getStats();
+
+            case PetContract.METHOD_RUN_MAINTENANCE:
+                return mMaintenance.runSlice();
+
+            case PetContract.METHOD_MAINTENANCE_STATS:
+                return mMaintenance.getStats();
+
+            case PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD:
+                if (arg == null) {
+                    throw new IllegalArgumentException("The threshold (ms) is missing");
+                }
+                mSlowQueryLog.setThreshold(Long.parseLong(arg));
+                return null;
+
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    private Bundle getRowCacheStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(PetContract.KEY_CACHE_HITS, mRowCache.getHitCount());
+        stats.putInt(PetContract.KEY_CACHE_MISSES, mRowCache.getMissCount());
+        stats.putInt(PetContract.KEY_CACHE_SIZE, mRowCache.getSize());
+        stats.putInt(PetContract.KEY_CACHE_MAX_SIZE, mRowCache.getMaxSize());
+        return stats;
+    }
+
+    private Bundle getStatementCacheStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(PetContract.KEY_CACHE_HITS, mStatementCache.getHitCount());
+        stats.putInt(PetContract.KEY_CACHE_MISSES, mStatementCache.getMissCount());
+        stats.putInt(PetContract.KEY_CACHE_SIZE, mStatementCache.getSize());
+        stats.putInt(PetContract.KEY_CACHE_MAX_SIZE, mStatementCache.getMaxSize());
+        return stats;
+    }
+
+    private Bundle undoClearPets() {
+        int nbPets = mFastClear.undo(mDbHelper.getWritableDatabase());
+        if (nbPets > 0) {
+            invalidateCachedRows(PetEntry.CONTENT_URI);
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_PETS_RESTORED, nbPets);
+        return result;
+    }
+
+    /**
+     * Turn the compiled statements of the writes on or off (the benchmark of the unit tests
+     * measures both).
+     */
+    void setStatementCacheEnabled(boolean enabled) {
+        mStatementCacheEnabled = enabled;
+    }
+
+    /**
+     * Turn the tombstones on or off (the benchmark of the unit tests measures both deletes).
+     * The tombstones already written stay out of the queries.
+     */
+    void setTombstoneMode(boolean enabled) {
+        mTombstoneMode = enabled;
+    }
+
+    /**
+     * "adb shell dumpsys activity provider com.example.android.pets" writes the slow query log.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mSlowQueryLog.dump(writer);
+    }
+
+    /**
+     * Close the database of a provider created by a test (see the benchmark of the unit tests).
+     * The system never calls it for the provider of the manifest.
+     */
+    @Override
+    public void shutdown() {
+        mChangeDispatcher.quit();
+        mFastClear.quit();
+        mCompactor.quit();
+        mStatementCache.close();
+        mDbHelper.close();
+    }
+
     /**
      * ****************** RETURN THE MIME TYPE
      * @param uri
@@ -266,6 +1271,20 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case URI_MATCHER_PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case URI_MATCHER_PET_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case URI_MATCHER_PET_STATS:
+                return PetStatsEntry.CONTENT_STATS_TYPE;
+            case URI_MATCHER_PET_COUNT:
+                return PetStatsEntry.CONTENT_COUNT_TYPE;
+            case URI_MATCHER_BREED_STATS:
+                return PetStatsEntry.CONTENT_BREEDS_TYPE;
+            case URI_MATCHER_PET_EXPORT:
+                return PetEntry.EXPORT_TYPE_CSV;
+            case URI_MATCHER_PET_CHANGES:
+                return PetChangesEntry.CONTENT_CHANGES_TYPE;
+            case URI_MATCHER_CHANGES_SEQUENCE:
+                return PetChangesEntry.CONTENT_SEQUENCE_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -276,60 +1295,330 @@ public class PetProvider extends ContentProvider {
                Helper methods
 
     ********************************************** */
-    private boolean isValidName(String name){
-        return !TextUtils.isEmpty(name);
+    /**
+     * Notify all the listeners that the data at this URI has changed.
+     * The notification goes through the {@link PetChangeDispatcher}, which coalesces
+     * the bursts of changes. While a batch is running on the current thread,
+     * the notification is deferred until the batch is committed.
+     *
+     * @param uri
+     */
+    private void notifyChange(@NonNull Uri uri) {
+        Set<Uri> pendingNotifications = mBatchNotifications.get();
+        if (pendingNotifications != null) {
+            pendingNotifications.add(uri);
+            return;
+        }
+
+        mChangeDispatcher.dispatch(uri);
     }
 
-    private boolean isValidBreed(String breed){
-        return true;
+    /**
+     * End a write transaction of the provider. The breeds inserted by the transaction go to
+     * the breed cache when the outermost transaction is committed.
+     *
+     * @param successful true if the transaction was marked successful
+     */
+    private void endTransaction(@NonNull SQLiteDatabase db, boolean successful) {
+        boolean ended = false;
+        try {
+            db.endTransaction();
+            ended = true;
+        } finally {
+            mBreedCache.onTransactionEnd(db, successful && ended);
+        }
+    }
+
+    /**
+     * Count the rows written for the maintenance. Inside a batch, they are counted
+     * when the batch is committed (up to a yield point, or at the end).
+     */
+    private void onRowsWritten(int nbRows) {
+        int[] batchRowsWritten = mBatchRowsWritten.get();
+        if (batchRowsWritten != null) {
+            batchRowsWritten[0] += nbRows;
+            return;
+        }
+
+        mMaintenance.onRowsWritten(nbRows);
+    }
+
+    /**
+     * Remove from the row cache the pets changed by a write on this URI:
+     * only one pet for a pet URI, all of them for a selection.
+     * Inside a batch, the invalidation is done again after the commit.
+     *
+     * @param uri
+     */
+    private void invalidateCachedRows(@NonNull Uri uri) {
+        Set<Uri> pendingInvalidations = mBatchInvalidations.get();
+        if (pendingInvalidations != null) {
+            pendingInvalidations.add(uri);
+        }
+
+        if (sUriMatcher.match(uri) == URI_MATCHER_PET_ID) {
+            mRowCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mRowCache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return true when the current thread runs a batch ({@link #applyBatch})
+     */
+    private boolean isInBatch() {
+        return mBatchNotifications.get() != null;
+    }
+
+    /**
+     * Database to use for the queries: the database of the helper. In concurrent mode
+     * (write-ahead logging) its connection pool gives each query a connection of its own
+     * for the time of the query, so the readers don't wait for the writer; a query of a
+     * batch (applyBatch) runs on the connection of the transaction of its thread, and sees
+     * the writes of the batch. The pool follows the database: nothing to reopen after a
+     * fast clear or a VACUUM.
+     */
+    private SQLiteDatabase getReaderDatabase() {
+        return mDbHelper.getReadableDatabase();
+    }
+
+    private Cursor queryTable(@NonNull SQLiteDatabase db,
+                              @NonNull String table,
+                              @Nullable String[] columns,
+                              @Nullable String selection,
+                              @Nullable String[] selectionArgs,
+                              @Nullable String sortOrder,
+                              @Nullable String limit) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, columns, selection,
+                null, null, sortOrder, limit);
+        return rawQuery(db, sql, selectionArgs);
+    }
+
+    /**
+     * Run a query, and keep it in the slow query log if it is too long.
+     * The cursor is filled here (getCount) to measure the real work of SQLite.
+     */
+    private Cursor rawQuery(@NonNull SQLiteDatabase db, @NonNull String sql, @Nullable String[] args) {
+        long start = System.nanoTime();
+        Cursor cursor = db.rawQuery(sql, args);
+        int nbRows = cursor.getCount();
+        mSlowQueryLog.record(db, sql, args, nbRows, (System.nanoTime() - start) / 1000000);
+        return cursor;
+    }
+
+    /**
+     * The columns of the values, when they are all columns of the compiled statements.
+     *
+     * @param columns {@link #STATEMENT_VALUES_COLUMNS}
+     * @return bit i for the column i, or 0 if the values have another column
+     */
+    private static int getColumns(@NonNull ContentValues contentValues, @NonNull String[] columns) {
+        int set = 0;
+        for (String key : contentValues.keySet()) {
+            int index = 0;
+            while (index < columns.length && !columns[index].equals(key)) {
+                index++;
+            }
+            if (index == columns.length) {
+                return 0;
+            }
+            set |= 1 << index;
+        }
+        return set;
     }
 
-    private boolean isValidGender(int gender){
-        switch (gender) {
-            case PetEntry.GENDER_FEMALE:
-            case PetEntry.GENDER_MALE:
-            case PetEntry.GENDER_UNKNOWN:
-                return true;
+    /**
+     * Update of a pet by its ID: "UPDATE pets SET name=?, weight=? WHERE _id=? AND deleted = 0
+     * AND (name IS NOT ? OR weight IS NOT ?)". Only a row that really changes is written.
+     *
+     * @param columns bit i for the column i of {@link #STATEMENT_TABLE_COLUMNS}
+     */
+    private static String buildUpdatePetById(int columns) {
+        StringBuilder setClause = new StringBuilder();
+        StringBuilder changedClause = new StringBuilder();
+        for (int i = 0; i < STATEMENT_TABLE_COLUMNS.length; i++) {
+            if ((columns & (1 << i)) == 0) {
+                continue;
+            }
+            if (setClause.length() > 0) {
+                setClause.append(", ");
+                changedClause.append(" OR ");
+            }
+            setClause.append(STATEMENT_TABLE_COLUMNS[i]).append("=?");
+            // "IS NOT ?" is also true when only one of the two is NULL
+            changedClause.append(STATEMENT_TABLE_COLUMNS[i]).append(" IS NOT ?");
         }
+        return "UPDATE " + PetEntry.TABLE_NAME + " SET " + setClause
+                + " WHERE " + PetEntry._ID + "=? AND " + PetDbHelper.SELECTION_LIVE
+                + " AND (" + changedClause + ")";
+    }
 
-        return false;
+    /**
+     * Insert a pet with the compiled statement of the cache.
+     * The values are bound like in the bulk insert: the name trimmed, the ID of the breed
+     * (the table gives 0 to a missing weight).
+     *
+     * @return the ID of the pet, or -1 if it is not inserted
+     */
+    private long insertPetStatement(@NonNull SQLiteDatabase db, @NonNull ContentValues contentValues) {
+        Long breedId = mBreedCache.getId(db, (String) contentValues.get(PetEntry.COLUMN_PET_BREED));
+        SQLiteStatement insertStatement = mStatementCache.acquire(db, SQL_INSERT_PET);
+        try {
+            insertStatement.bindString(1, ((String) contentValues.get(PetEntry.COLUMN_PET_NAME)).trim());
+            if (breedId == null) {
+                insertStatement.bindNull(2);
+            } else {
+                insertStatement.bindLong(2, breedId);
+            }
+            insertStatement.bindLong(3, PetValidator.asInt(contentValues.get(PetEntry.COLUMN_PET_GENDER)));
+            if (contentValues.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+                insertStatement.bindLong(4, PetValidator.asInt(contentValues.get(PetEntry.COLUMN_PET_WEIGHT)));
+            } else {
+                insertStatement.bindLong(4, 0);
+            }
+            return insertStatement.executeInsert();
+        } catch (SQLException e) {
+            // Like SQLiteDatabase.insert()
+            Log.e(LOG_TAG, "Error inserting " + contentValues, e);
+            return -1;
+        } finally {
+            mStatementCache.release(db, SQL_INSERT_PET, insertStatement);
+        }
     }
-    private boolean isValidWeight(int weight){
-        if (weight >= 0)
-            return true;
-        return false;
+
+    /**
+     * Run an UPDATE or a DELETE with the compiled statement of the cache.
+     *
+     * @return the number of rows changed
+     */
+    private int executeUpdateDelete(@NonNull SQLiteDatabase db, @NonNull String sql, @NonNull Object[] args) {
+        SQLiteStatement statement = mStatementCache.acquire(db, sql);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            mStatementCache.release(db, sql, statement);
+        }
     }
 
-    private boolean isAllValid(ContentValues contentValues) {
+    // The SQL of an update is only built if the update is slow
+    private void recordSlowUpdate(@NonNull SQLiteDatabase db,
+                                  @NonNull ContentValues contentValues,
+                                  @Nullable String selection,
+                                  @Nullable String[] selectionArgs,
+                                  int nbRows,
+                                  long start) {
+        long durationMillis = (System.nanoTime() - start) / 1000000;
+        if (!mSlowQueryLog.isSlow(durationMillis)) {
+            return;
+        }
 
-        if (isValidName(contentValues.getAsString(PetEntry.COLUMN_PET_NAME)) &&
-            isValidBreed(contentValues.getAsString(PetEntry.COLUMN_PET_BREED)) &&
-            isValidGender(contentValues.getAsInteger(PetEntry.COLUMN_PET_GENDER)) &&
-            isValidWeight(contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT))
-        ) { return true;  }
+        StringBuilder sql = new StringBuilder("UPDATE " + PetEntry.TABLE_NAME + " SET ");
+        ArrayList<Object> args = new ArrayList<>();
+        boolean firstColumn = true;
+        for (String column : contentValues.keySet()) {
+            if (!firstColumn) {
+                sql.append(", ");
+            }
+            firstColumn = false;
+            Object value = contentValues.get(column);
+            if (value == null) {
+                sql.append(column).append("=NULL");
+            } else {
+                sql.append(column).append("=?");
+                args.add(value);
+            }
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                args.add(arg);
+            }
+        }
 
-        return false;
+        mSlowQueryLog.record(db, sql.toString(), args.toArray(), nbRows, durationMillis);
     }
 
-    private ContentValues formatValues (ContentValues cv) {
-        ContentValues aPet = new ContentValues();
+    /**
+     * The values to write in the pets table, when there is no compiled statement for them:
+     * the name trimmed, and the breed replaced by the ID of the breed (inserted if it's a
+     * new breed). The values of the caller are not changed: a failed operation can be
+     * applied again. Only one copy is made, and none if there is nothing to change.
+     */
+    private ContentValues toPetValues(@NonNull SQLiteDatabase db, @NonNull ContentValues contentValues) {
+        Object name = contentValues.get(PetEntry.COLUMN_PET_NAME);
+        // trim() gives the same String when there is nothing to remove
+        String trimmedName = name instanceof String ? ((String) name).trim() : null;
+        boolean hasBreed = contentValues.containsKey(PetEntry.COLUMN_PET_BREED);
+        if (trimmedName == name && !hasBreed) {
+            return contentValues;
+        }
 
-        // Name
-        aPet.put(PetEntry.COLUMN_PET_NAME, cv.getAsString(PetEntry.COLUMN_PET_NAME).trim() );
+        ContentValues petValues = new ContentValues(contentValues);
+        if (trimmedName != name) {
+            petValues.put(PetEntry.COLUMN_PET_NAME, trimmedName);
+        }
+        if (hasBreed) {
+            petValues.remove(PetEntry.COLUMN_PET_BREED);
+            petValues.put(PetDbHelper.COLUMN_PET_BREED_ID,
+                    (Long) getTableValue(db, contentValues, PetEntry.COLUMN_PET_BREED));
+        }
+        return petValues;
+    }
 
-        // Breed
-        if (cv.getAsString(PetEntry.COLUMN_PET_BREED) == null)
-            aPet.put(PetEntry.COLUMN_PET_BREED, (String) null);
-        else
-            aPet.put(PetEntry.COLUMN_PET_BREED, cv.getAsString(PetEntry.COLUMN_PET_BREED).trim());
+    /**
+     * The value of a column of the values, as it is written in the pets table: the name
+     * trimmed, the ID of the breed for the breed.
+     *
+     * @param column a column of {@link #STATEMENT_VALUES_COLUMNS}
+     */
+    @Nullable
+    private Object getTableValue(@NonNull SQLiteDatabase db, @NonNull ContentValues contentValues,
+                                 @NonNull String column) {
+        Object value = contentValues.get(column);
+        if (PetEntry.COLUMN_PET_BREED.equals(column)) {
+            return mBreedCache.getId(db, value == null ? null : value.toString());
+        }
+        if (PetEntry.COLUMN_PET_NAME.equals(column) && value instanceof String) {
+            return ((String) value).trim();
+        }
+        return value;
+    }
 
-        // Gender
-        aPet.put(PetEntry.COLUMN_PET_GENDER, cv.getAsInteger(PetEntry.COLUMN_PET_GENDER) );
+    /**
+     * The pets table has no breed column: a selection on the breed selects the IDs
+     * of the pets from the view.
+     */
+    private static String toPetsSelection(@Nullable String selection) {
+        if (TextUtils.isEmpty(selection) || !BREED_COLUMN.matcher(selection).find()) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PETS_VIEW_NAME
+                + " WHERE " + selection + ")";
+    }
 
-        // Weight
-        aPet.put(PetEntry.COLUMN_PET_WEIGHT, cv.getAsInteger(PetEntry.COLUMN_PET_WEIGHT) );
+    /**
+     * Add a clause to the selection of the caller (AND).
+     */
+    private static String appendSelection(@Nullable String selection, @NonNull String clause) {
+        if (TextUtils.isEmpty(selection)) {
+            return clause;
+        }
+        return "(" + selection + ") AND " + clause;
+    }
 
-        return aPet;
+    private static String[] appendSelectionArgs(@Nullable String[] selectionArgs, @NonNull String arg) {
+        if (selectionArgs == null) {
+            return new String[] {arg};
+        }
+        String[] newSelectionArgs = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, newSelectionArgs, 0, selectionArgs.length);
+        newSelectionArgs[selectionArgs.length] = arg;
+        return newSelectionArgs;
     }
 
 }
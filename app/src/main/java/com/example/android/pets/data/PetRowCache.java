@@ -0,0 +1,181 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the pets rows, by ID, used by the {@link PetProvider}
+ * to answer the single pet queries without going to SQLite.
+ *
+ * A row is stored with all its columns (in the order of {@link #COLUMNS}),
+ * and served as an in-memory cursor with the projection asked by the caller.
+ */
+public class PetRowCache {
+    public static final String LOG_TAG = PetRowCache.class.getSimpleName();
+
+    // The columns stored for each row
+    public static final String[] COLUMNS = PetProvider.ALL_COLUMNS;
+
+    private final LruCache<Long, Object[]> mRows;
+
+    // Increased by each invalidation: a row read before an invalidation is not cached,
+    // it could be older than the write that caused the invalidation
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    // Counters of the LruCache at the last reset (guarded by this)
+    private int mHitsAtReset;
+    private int mMissesAtReset;
+
+    /**
+     * @param maxRows max number of rows in the cache
+     */
+    public PetRowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * @return false if a column of the projection is not stored in the cache
+     */
+    public static boolean canServe(@Nullable String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Give the cached row as a cursor with the projection, or null if the row is not cached.
+     *
+     * @param id
+     * @param projection
+     * @return
+     */
+    @Nullable
+    public Cursor get(long id, @Nullable String[] projection) {
+        Object[] row = mRows.get(id);
+        if (row == null) {
+            return null;
+        }
+        return toCursor(row, projection);
+    }
+
+    /**
+     * Read the current row of the cursor (it must contain all the {@link #COLUMNS}).
+     */
+    @NonNull
+    public static Object[] readRow(@NonNull Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        row[0] = cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID));
+        row[1] = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME));
+        row[2] = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED));
+        row[3] = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER));
+        row[4] = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT));
+        return row;
+    }
+
+    /**
+     * Current generation: to read before querying the row that will be put in the cache.
+     */
+    public long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Cache a row, unless an invalidation happened since the generation was read.
+     *
+     * @param id
+     * @param row        values of the {@link #COLUMNS}
+     * @param generation value of {@link #getGeneration()} before the row was read
+     */
+    public void put(long id, @NonNull Object[] row, long generation) {
+        synchronized (mGeneration) {
+            if (generation == mGeneration.get()) {
+                mRows.put(id, row);
+            }
+        }
+    }
+
+    public void invalidate(long id) {
+        synchronized (mGeneration) {
+            mGeneration.incrementAndGet();
+            mRows.remove(id);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (mGeneration) {
+            mGeneration.incrementAndGet();
+            mRows.evictAll();
+        }
+    }
+
+    @NonNull
+    public static Cursor toCursor(@Nullable Object[] row, @Nullable String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[indexOf(projection[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* ********************************************
+
+               Counters
+
+    ********************************************** */
+    /**
+     * Hits and misses since the last {@link #resetCounters()}.
+     */
+    public synchronized int getHitCount() {
+        return mRows.hitCount() - mHitsAtReset;
+    }
+
+    public synchronized int getMissCount() {
+        return mRows.missCount() - mMissesAtReset;
+    }
+
+    /**
+     * Start the hits and the misses again from 0 (the LruCache can't reset its counters).
+     */
+    public synchronized void resetCounters() {
+        mHitsAtReset = mRows.hitCount();
+        mMissesAtReset = mRows.missCount();
+    }
+
+    public int getSize() {
+        return mRows.size();
+    }
+
+    public int getMaxSize() {
+        return mRows.maxSize();
+    }
+}
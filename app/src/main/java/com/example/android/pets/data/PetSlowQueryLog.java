@@ -0,0 +1,219 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Bounded log of the slowest statements run by the {@link PetProvider}.
+ *
+ * A statement slower than the threshold is kept with its SQL, the shape of its arguments
+ * (their type and length, never their values), the number of rows, the duration and its
+ * EXPLAIN QUERY PLAN. The log is a ring buffer: the oldest entries are overwritten.
+ * Only the slow statements pay for the recording.
+ */
+public class PetSlowQueryLog {
+    public static final String LOG_TAG = PetSlowQueryLog.class.getSimpleName();
+
+    private final Entry[] mEntries;
+    // Index of the next entry to write, and number of entries written since the creation
+    private int mNext = 0;
+    private long mNbRecorded = 0;
+
+    private volatile long mThresholdMillis;
+
+    /**
+     * An entry of the log.
+     */
+    public static class Entry {
+        public final long time;
+        public final String sql;
+        public final String argsShape;
+        public final int nbRows;
+        public final long durationMillis;
+        public final String queryPlan;
+
+        Entry(long time, String sql, String argsShape, int nbRows, long durationMillis, String queryPlan) {
+            this.time = time;
+            this.sql = sql;
+            this.argsShape = argsShape;
+            this.nbRows = nbRows;
+            this.durationMillis = durationMillis;
+            this.queryPlan = queryPlan;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date(time))
+                    + " " + durationMillis + " ms, " + nbRows + " rows\n"
+                    + "  " + sql + "\n"
+                    + "  args: " + argsShape + "\n"
+                    + "  plan: " + queryPlan.replace("\n", "\n        ");
+        }
+    }
+
+    /**
+     * @param capacity        max number of entries kept
+     * @param thresholdMillis the statements at least this long are recorded
+     */
+    public PetSlowQueryLog(int capacity, long thresholdMillis) {
+        mEntries = new Entry[capacity];
+        mThresholdMillis = thresholdMillis;
+    }
+
+    public long getThreshold() {
+        return mThresholdMillis;
+    }
+
+    public void setThreshold(long thresholdMillis) {
+        mThresholdMillis = thresholdMillis;
+    }
+
+    public boolean isSlow(long durationMillis) {
+        return durationMillis >= mThresholdMillis;
+    }
+
+    /**
+     * Record a statement, if it is slow. The query plan is read on the same database.
+     *
+     * @param db             database the statement ran on
+     * @param sql            statement, with its "?" placeholders
+     * @param args           arguments of the statement
+     * @param nbRows         number of rows read or changed
+     * @param durationMillis
+     */
+    public void record(@NonNull SQLiteDatabase db,
+                       @NonNull String sql,
+                       @Nullable Object[] args,
+                       int nbRows,
+                       long durationMillis) {
+        if (!isSlow(durationMillis)) {
+            return;
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), sql, describeArgs(args), nbRows,
+                durationMillis, explain(db, sql, args));
+        Log.w(LOG_TAG, "Slow statement: " + entry);
+
+        synchronized (mEntries) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % mEntries.length;
+            mNbRecorded++;
+        }
+    }
+
+    /**
+     * @return the entries kept, from the oldest to the newest
+     */
+    @NonNull
+    public Entry[] getEntries() {
+        synchronized (mEntries) {
+            int nbEntries = (int) Math.min(mNbRecorded, mEntries.length);
+            Entry[] entries = new Entry[nbEntries];
+            int first = (mNext - nbEntries + mEntries.length) % mEntries.length;
+            for (int i = 0; i < nbEntries; i++) {
+                entries[i] = mEntries[(first + i) % mEntries.length];
+            }
+            return entries;
+        }
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            for (int i = 0; i < mEntries.length; i++) {
+                mEntries[i] = null;
+            }
+            mNext = 0;
+            mNbRecorded = 0;
+        }
+    }
+
+    /**
+     * Write the log (for dumpsys).
+     */
+    public void dump(@NonNull PrintWriter writer) {
+        Entry[] entries = getEntries();
+        long nbRecorded;
+        synchronized (mEntries) {
+            nbRecorded = mNbRecorded;
+        }
+
+        writer.println("Slow statements (threshold " + mThresholdMillis + " ms, "
+                + entries.length + " kept of " + nbRecorded + "):");
+        for (Entry entry : entries) {
+            writer.println(entry);
+        }
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+
+    // The type and the length of each argument: the values can be personal data
+    private static String describeArgs(@Nullable Object[] args) {
+        if (args == null || args.length == 0) {
+            return "none";
+        }
+
+        StringBuilder shape = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                shape.append(", ");
+            }
+            Object arg = args[i];
+            if (arg == null) {
+                shape.append("null");
+            } else if (arg instanceof Number
+                    || (arg.toString().length() > 0 && TextUtils.isDigitsOnly(arg.toString()))) {
+                shape.append("number");
+            } else {
+                shape.append("text(").append(arg.toString().length()).append(')');
+            }
+        }
+        return shape.toString();
+    }
+
+    /**
+     * @return the EXPLAIN QUERY PLAN of the statement, one step by line
+     */
+    static String explain(SQLiteDatabase db, String sql, Object[] args) {
+        String[] planArgs = null;
+        if (args != null) {
+            planArgs = new String[args.length];
+            for (int i = 0; i < args.length; i++) {
+                planArgs[i] = args[i] == null ? null : args[i].toString();
+            }
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, planArgs);
+            int detailIndex = cursor.getColumnIndex("detail");
+            StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(cursor.getString(detailIndex < 0 ? cursor.getColumnCount() - 1 : detailIndex));
+            }
+            return plan.toString();
+        } catch (RuntimeException e) {
+            // The statement can't be explained (for example an argument rawQuery can't bind)
+            return "unavailable (" + e.getMessage() + ")";
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangesEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps an up to date {@link PetColumnarSnapshot} of the pets.
+ *
+ * The pets are read once; then, after each notification of the provider, only the pets
+ * changed since the last refresh are read (from the log of the changes) and merged into
+ * a new snapshot. If the log doesn't go back far enough, all the pets are read again.
+ * The refreshes run on one worker thread; the listeners get the new snapshots
+ * on the main thread.
+ */
+public class PetSnapshotStore {
+    public static final String LOG_TAG = PetSnapshotStore.class.getSimpleName();
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+    private static final String[] CHANGES_COLUMNS = {
+            PetChangesEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetChangesEntry.COLUMN_SEQUENCE,
+            PetChangesEntry.COLUMN_DELETED
+    };
+
+    private static PetSnapshotStore sInstance;
+
+    /**
+     * Called on the main thread with each new snapshot.
+     */
+    public interface Listener {
+        void onSnapshotChanged(@NonNull PetColumnarSnapshot snapshot);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ContentObserver mObserver;
+
+    // Listeners (main thread only)
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    private volatile PetColumnarSnapshot mSnapshot = PetColumnarSnapshot.EMPTY;
+
+    // State of the refreshes (worker thread only)
+    private boolean mLoaded = false;
+    private long mLastSequence;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * The store of the application (it lives as long as the process).
+     */
+    @NonNull
+    public static synchronized PetSnapshotStore getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new PetSnapshotStore(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    public PetSnapshotStore(@NonNull ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+
+        HandlerThread workerThread = new HandlerThread(LOG_TAG);
+        workerThread.start();
+        mWorkerHandler = new Handler(workerThread.getLooper());
+
+        // The notifications are received on the worker thread
+        mObserver = new ContentObserver(mWorkerHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                refresh();
+            }
+        };
+    }
+
+    /**
+     * @return the last snapshot (empty until the first load)
+     */
+    @NonNull
+    public PetColumnarSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * The first listener starts the refreshes; the listener gets the current snapshot
+     * once it is loaded.
+     */
+    public void addListener(@NonNull Listener listener) {
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            // The pets URIs are notified below the CONTENT_URI
+            mContentResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+        }
+        mWorkerHandler.post(mRefreshRunnable);
+    }
+
+    /**
+     * The last listener stops the refreshes (the snapshot is kept, and refreshed
+     * when a listener comes back).
+     */
+    public void removeListener(@NonNull Listener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            mContentResolver.unregisterContentObserver(mObserver);
+        }
+    }
+
+    /* ********************************************
+
+               Worker thread
+
+    ********************************************** */
+    private void refresh() {
+        long[] sequences = readSequences(mContentResolver);
+
+        if (!mLoaded || sequences[0] > mLastSequence + 1) {
+            // First load, or the log doesn't go back to the last refresh.
+            // The sequence is read before the pets, so no change can be missed
+            // (the changes give the current values: applying one again is harmless)
+            if (mLoaded) {
+                Log.i(LOG_TAG, "Changes lost since " + mLastSequence + ": reload");
+            }
+            mLastSequence = sequences[1];
+            if (!loadAll()) {
+                return;
+            }
+            mLoaded = true;
+        } else if (sequences[1] != mLastSequence) {
+            if (!applyChanges()) {
+                return;
+            }
+        }
+
+        publish(mSnapshot);
+    }
+
+    private boolean loadAll() {
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI, COLUMNS, null, null, PetEntry._ID + " ASC");
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            PetColumnarSnapshot.Builder builder = new PetColumnarSnapshot.Builder(cursor.getCount(), new String[0]);
+            while (cursor.moveToNext()) {
+                addPet(builder, cursor);
+            }
+            mSnapshot = builder.build();
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, "Snapshot of " + mSnapshot.getCount() + " pets loaded");
+        return true;
+    }
+
+    /**
+     * Merge the changes into a new snapshot, in one pass: the changes are read sorted by ID,
+     * like the snapshot. The unchanged ranges are copied array by array.
+     */
+    private boolean applyChanges() {
+        Cursor cursor = mContentResolver.query(PetChangesEntry.buildChangesUri(mLastSequence),
+                CHANGES_COLUMNS, null, null, PetChangesEntry._ID + " ASC");
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            PetColumnarSnapshot snapshot = mSnapshot;
+            String[] breeds = new String[snapshot.getNbBreeds()];
+            for (int code = 0; code < breeds.length; code++) {
+                breeds[code] = snapshot.getBreedName(code);
+            }
+            PetColumnarSnapshot.Builder builder =
+                    new PetColumnarSnapshot.Builder(snapshot.getCount() + cursor.getCount(), breeds);
+
+            int position = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                mLastSequence = Math.max(mLastSequence, cursor.getLong(5));
+
+                // The pets before the changed one are unchanged
+                int unchanged = position;
+                while (position < snapshot.getCount() && snapshot.getId(position) < id) {
+                    position++;
+                }
+                builder.copy(snapshot, unchanged, position - unchanged);
+
+                if (position < snapshot.getCount() && snapshot.getId(position) == id) {
+                    // Replaced or removed
+                    position++;
+                }
+                if (cursor.getInt(6) == 0) {
+                    addPet(builder, cursor);
+                }
+            }
+            builder.copy(snapshot, position, snapshot.getCount() - position);
+
+            mSnapshot = builder.build();
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    // The cursor starts with the COLUMNS
+    private static void addPet(PetColumnarSnapshot.Builder builder, Cursor cursor) {
+        builder.add(cursor.getLong(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getInt(3),
+                cursor.getInt(4));
+    }
+
+    private void publish(final PetColumnarSnapshot snapshot) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onSnapshotChanged(snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the first and the last sequences of the log of the changes
+     */
+    @NonNull
+    public static long[] readSequences(@NonNull ContentResolver contentResolver) {
+        long[] sequences = new long[2];
+        Cursor cursor = contentResolver.query(PetChangesEntry.SEQUENCE_URI,
+                new String[] {PetChangesEntry.COLUMN_FIRST_SEQUENCE, PetChangesEntry.COLUMN_LAST_SEQUENCE},
+                null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    sequences[0] = cursor.getLong(0);
+                    sequences[1] = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return sequences;
+    }
+}
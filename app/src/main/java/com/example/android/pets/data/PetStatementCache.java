@@ -0,0 +1,136 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the compiled statements of the writes of the {@link PetProvider}, by SQL text:
+ * the insert of a pet, the update and the delete of a pet by its ID. The shapes are few,
+ * so after the first writes a statement is only bound and run again.
+ *
+ * The statements are compiled on the writable database: when the helper opens another
+ * one (after a close), the statements of the old one are closed.
+ *
+ * A statement is taken out of the cache while it runs ({@link #acquire}, then
+ * {@link #release}): two threads never bind the same statement. A thread that finds
+ * no statement of its SQL compiles a new one, out of the lock of the cache (the compilation
+ * waits for the connection, which a batch of another thread can hold).
+ */
+public class PetStatementCache {
+    public static final String LOG_TAG = PetStatementCache.class.getSimpleName();
+
+    private final int mMaxSize;
+
+    // Statements not in use, the least recently used first (guarded by this)
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+    // Database of the statements (guarded by this)
+    private SQLiteDatabase mDatabase;
+
+    private int mNbHits;
+    private int mNbMisses;
+
+    /**
+     * @param maxSize number of statements kept
+     */
+    public PetStatementCache(int maxSize) {
+        mMaxSize = maxSize;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() <= mMaxSize) {
+                    return false;
+                }
+                eldest.getValue().close();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Take the statement of this SQL out of the cache, or compile it.
+     * Give it back with {@link #release}, after it ran.
+     *
+     * @param db  writable database
+     * @param sql statement, with its "?" placeholders
+     * @return the statement, without bindings
+     */
+    @NonNull
+    public SQLiteStatement acquire(@NonNull SQLiteDatabase db, @NonNull String sql) {
+        synchronized (this) {
+            if (db != mDatabase) {
+                closeStatements();
+                mDatabase = db;
+            }
+            SQLiteStatement statement = mStatements.remove(sql);
+            if (statement != null) {
+                mNbHits++;
+                return statement;
+            }
+            mNbMisses++;
+        }
+        return db.compileStatement(sql);
+    }
+
+    /**
+     * Put back a statement given by {@link #acquire}. It is closed if the cache
+     * already has one for this SQL, or if the database changed.
+     *
+     * @param db        database given to {@link #acquire}
+     * @param sql       SQL given to {@link #acquire}
+     * @param statement
+     */
+    public void release(@NonNull SQLiteDatabase db, @NonNull String sql, @NonNull SQLiteStatement statement) {
+        // The arguments of the caller are not kept
+        statement.clearBindings();
+        synchronized (this) {
+            if (db == mDatabase && !mStatements.containsKey(sql)) {
+                mStatements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Close the statements (before the database is closed).
+     */
+    public synchronized void close() {
+        closeStatements();
+        mDatabase = null;
+    }
+
+    public synchronized int getHitCount() {
+        return mNbHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mNbMisses;
+    }
+
+    /**
+     * Set the hits and the misses to 0 (the statements stay in the cache).
+     */
+    public synchronized void resetCounters() {
+        mNbHits = 0;
+        mNbMisses = 0;
+    }
+
+    public synchronized int getSize() {
+        return mStatements.size();
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    private void closeStatements() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
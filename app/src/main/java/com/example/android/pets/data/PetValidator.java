@@ -0,0 +1,142 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Validation and formatting rules of the pets values, shared by all the write paths:
+ * the {@link PetProvider} and the {@link PetImporter}.
+ */
+public final class PetValidator {
+    private PetValidator() {}
+
+    // The columns a caller can write
+    private static final String[] COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static boolean isValidName(Object name){
+        return name instanceof String && TextUtils.getTrimmedLength((String) name) > 0;
+    }
+
+    private static boolean isValidBreed(Object breed){
+        return breed == null || breed instanceof String;
+    }
+
+    private static boolean isValidGender(int gender){
+        switch (gender) {
+            case PetEntry.GENDER_FEMALE:
+            case PetEntry.GENDER_MALE:
+            case PetEntry.GENDER_UNKNOWN:
+                return true;
+        }
+
+        return false;
+    }
+    private static boolean isValidWeight(int weight){
+        if (weight >= 0)
+            return true;
+        return false;
+    }
+
+    /**
+     * Check only the columns present in the values: an update can contain one column.
+     * For an insert, the NOT NULL columns without default (name and gender) must be present.
+     * A column that is not one of the pet (the ID, a misspelled name...) is refused.
+     *
+     * Nothing is copied or boxed: the values already in the ContentValues are read as they are.
+     *
+     * @param contentValues
+     * @param isInsert
+     * @return
+     */
+    public static boolean isAllValid(@Nullable ContentValues contentValues, boolean isInsert) {
+        if (contentValues == null) {
+            return false;
+        }
+
+        for (String column : contentValues.keySet()) {
+            if (!isColumn(column)) {
+                return false;
+            }
+        }
+
+        // Name
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_NAME)) {
+            if (!isValidName(contentValues.get(PetEntry.COLUMN_PET_NAME))) {
+                return false;
+            }
+        } else if (isInsert) {
+            return false;
+        }
+
+        // Breed
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_BREED)
+                && !isValidBreed(contentValues.get(PetEntry.COLUMN_PET_BREED))) {
+            return false;
+        }
+
+        // Gender
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_GENDER)) {
+            Object gender = contentValues.get(PetEntry.COLUMN_PET_GENDER);
+            if (!isInt(gender) || !isValidGender(asInt(gender))) {
+                return false;
+            }
+        } else if (isInsert) {
+            return false;
+        }
+
+        // Weight (the table gives 0 by default)
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+            Object weight = contentValues.get(PetEntry.COLUMN_PET_WEIGHT);
+            if (!isInt(weight) || !isValidWeight(asInt(weight))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isColumn(String column) {
+        for (String petColumn : COLUMNS) {
+            if (petColumn.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isInt(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return true;
+        }
+        if (value instanceof Long) {
+            // Checked before asInt() narrows it
+            long longValue = (Long) value;
+            return longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE;
+        }
+        if (value instanceof String) {
+            try {
+                Integer.parseInt((String) value);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // The value must have been checked with isInt()
+    public static int asInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return Integer.parseInt((String) value);
+    }
+}
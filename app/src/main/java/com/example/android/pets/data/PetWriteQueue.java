@@ -0,0 +1,232 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue of the writes of the UI: they run on one writer thread, never on the main thread.
+ *
+ * The writes queued during the group window (or up to {@link #MAX_GROUP_SIZE} writes) are
+ * committed together, in one {@link ContentResolver#applyBatch} (one transaction, one sync
+ * of the journal). The result of each write is given back to its {@link Callback}
+ * on the main thread, in the order of the queue.
+ *
+ * If a write of a group fails, the writes of the group are done again one by one,
+ * so a bad write only fails itself.
+ */
+public class PetWriteQueue {
+    public static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    // Default group window (ms): how long a write waits for the next ones
+    public static final long DEFAULT_GROUP_WINDOW = 20;
+
+    // Max number of writes by group commit
+    public static final int MAX_GROUP_SIZE = 100;
+
+    private static PetWriteQueue sInstance;
+
+    /**
+     * Result of a queued write, on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param result the new pet URI for an insert, the number of rows for an update
+         *               or a delete (null if the write failed)
+         * @param error  the cause of the failure, or null
+         */
+        void onWriteDone(@Nullable ContentProviderResult result, @Nullable Exception error);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Handler mWriterHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile long mGroupWindow = DEFAULT_GROUP_WINDOW;
+
+    // Writes waiting for the next group commit (guarded by mPendingWrites)
+    private final List<PendingWrite> mPendingWrites = new ArrayList<>();
+    private boolean mCommitScheduled = false;
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commitPendingWrites();
+        }
+    };
+
+    /**
+     * The queue of the application (it lives as long as the process).
+     */
+    @NonNull
+    public static synchronized PetWriteQueue getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteQueue(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    public PetWriteQueue(@NonNull ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+
+        HandlerThread writerThread = new HandlerThread(LOG_TAG);
+        writerThread.start();
+        mWriterHandler = new Handler(writerThread.getLooper());
+    }
+
+    public void insert(@NonNull Uri uri, @NonNull ContentValues values, @Nullable Callback callback) {
+        enqueue(ContentProviderOperation.newInsert(uri)
+                .withValues(values)
+                .build(), callback);
+    }
+
+    public void update(@NonNull Uri uri,
+                       @NonNull ContentValues values,
+                       @Nullable String selection,
+                       @Nullable String[] selectionArgs,
+                       @Nullable Callback callback) {
+        enqueue(ContentProviderOperation.newUpdate(uri)
+                .withValues(values)
+                .withSelection(selection, selectionArgs)
+                .build(), callback);
+    }
+
+    public void delete(@NonNull Uri uri,
+                       @Nullable String selection,
+                       @Nullable String[] selectionArgs,
+                       @Nullable Callback callback) {
+        enqueue(ContentProviderOperation.newDelete(uri)
+                .withSelection(selection, selectionArgs)
+                .build(), callback);
+    }
+
+    /**
+     * Commit the pending writes without waiting for the end of the group window.
+     */
+    public void flush() {
+        synchronized (mPendingWrites) {
+            mWriterHandler.removeCallbacks(mCommitRunnable);
+            mCommitScheduled = true;
+            mWriterHandler.post(mCommitRunnable);
+        }
+    }
+
+    public long getGroupWindow() {
+        return mGroupWindow;
+    }
+
+    public void setGroupWindow(long groupWindow) {
+        mGroupWindow = groupWindow;
+    }
+
+    private void enqueue(@NonNull ContentProviderOperation operation, @Nullable Callback callback) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(new PendingWrite(operation, callback));
+
+            if (mPendingWrites.size() >= MAX_GROUP_SIZE) {
+                // The group is full: no need to wait for the end of the window
+                mWriterHandler.removeCallbacks(mCommitRunnable);
+                mCommitScheduled = true;
+                mWriterHandler.post(mCommitRunnable);
+            } else if (!mCommitScheduled) {
+                mCommitScheduled = true;
+                mWriterHandler.postDelayed(mCommitRunnable, mGroupWindow);
+            }
+        }
+    }
+
+    /* ********************************************
+
+               Writer thread
+
+    ********************************************** */
+    private void commitPendingWrites() {
+        List<PendingWrite> group;
+        synchronized (mPendingWrites) {
+            mCommitScheduled = false;
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            group = new ArrayList<>(mPendingWrites.subList(0, Math.min(MAX_GROUP_SIZE, mPendingWrites.size())));
+            mPendingWrites.subList(0, group.size()).clear();
+
+            if (!mPendingWrites.isEmpty()) {
+                // More than one group was waiting: the next one right after this one
+                mCommitScheduled = true;
+                mWriterHandler.post(mCommitRunnable);
+            }
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(group.size());
+        for (PendingWrite write : group) {
+            operations.add(write.operation);
+        }
+
+        try {
+            ContentProviderResult[] results = mContentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < group.size(); i++) {
+                deliver(group.get(i), results[i], null);
+            }
+            Log.d(LOG_TAG, "Group commit of " + group.size() + " writes");
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            if (group.size() == 1) {
+                deliver(group.get(0), null, e);
+                return;
+            }
+
+            // Find the bad writes: each write alone
+            Log.w(LOG_TAG, "Group commit of " + group.size() + " writes failed, retried one by one", e);
+            for (PendingWrite write : group) {
+                commitAlone(write);
+            }
+        }
+    }
+
+    private void commitAlone(PendingWrite write) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        operations.add(write.operation);
+        try {
+            deliver(write, mContentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations)[0], null);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.e(LOG_TAG, "Write failed: " + write.operation, e);
+            deliver(write, null, e);
+        }
+    }
+
+    private void deliver(final PendingWrite write,
+                         final ContentProviderResult result,
+                         final Exception error) {
+        if (write.callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write.callback.onWriteDone(result, error);
+            }
+        });
+    }
+
+    private static class PendingWrite {
+        final ContentProviderOperation operation;
+        final Callback callback;
+
+        PendingWrite(ContentProviderOperation operation, Callback callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.pets;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Loader;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetJobSchedulerShadow;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The pages of the {@link PetDeltaLoader}, with the pets deleted between two pages: each
+ * pet alive is in the list once, in the order of the IDs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22, shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class})
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetDeltaLoaderTest {
+
+    private static final int PAGE_SIZE = 4;
+    private static final int NB_PETS = 10;
+
+    // Time given to a load (the loads run in the pool of the AsyncTasks)
+    private static final long LOAD_TIMEOUT_MS = 10000;
+
+    private PetProvider mProvider;
+    private PetDeltaLoader mLoader;
+    private final List<PetRows> mLoads = Collections.synchronizedList(new ArrayList<PetRows>());
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = Robolectric.setupContentProvider(PetProvider.class);
+        for (int i = 1; i <= NB_PETS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i);
+            assertNotNull(mProvider.insert(PetEntry.CONTENT_URI, values));
+        }
+
+        mLoader = new PetDeltaLoader(RuntimeEnvironment.getApplication(), PAGE_SIZE);
+        mLoader.registerListener(0, new Loader.OnLoadCompleteListener<PetRows>() {
+            @Override
+            public void onLoadComplete(Loader<PetRows> loader, PetRows rows) {
+                mLoads.add(rows);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mLoader.reset();
+        mProvider.shutdown();
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void deletesBetweenPages() {
+        mLoader.startLoading();
+        assertIds(awaitLoad(), 1, 2, 3, 4);
+
+        // The last pet of the page too: the next page starts after it all the same
+        delete(2);
+        delete(4);
+        assertIds(awaitLoad(), 1, 3);
+
+        mLoader.loadMore();
+        assertIds(awaitLoad(), 1, 3, 5, 6, 7, 8);
+
+        // A pet of the next page, before it is loaded
+        delete(9);
+        awaitLoad();
+        mLoader.loadMore();
+        assertIds(awaitLoad(), 1, 3, 5, 6, 7, 8, 10);
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    private void delete(long id) {
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null));
+    }
+
+    /**
+     * Wait for the next rows of the loader. The main looper runs the deliveries, and its
+     * clock runs the coalescing window of the notifications.
+     */
+    private PetRows awaitLoad() {
+        int nbLoads = mLoads.size();
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+        while (mLoads.size() == nbLoads) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No load after " + LOAD_TIMEOUT_MS + " ms");
+            }
+            ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return mLoads.get(mLoads.size() - 1);
+    }
+
+    private static void assertIds(PetRows rows, long... ids) {
+        long[] loadedIds = new long[rows.getCount()];
+        for (int i = 0; i < loadedIds.length; i++) {
+            loadedIds[i] = rows.getId(i);
+        }
+        assertEquals(Arrays.toString(ids), Arrays.toString(loadedIds));
+    }
+}
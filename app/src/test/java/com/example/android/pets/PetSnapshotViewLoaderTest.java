@@ -0,0 +1,212 @@
+package com.example.android.pets;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Loader;
+import android.support.annotation.NonNull;
+
+import com.example.android.pets.data.PetColumnarSnapshot;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetJobSchedulerShadow;
+import com.example.android.pets.data.PetProvider;
+import com.example.android.pets.data.PetSnapshotStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A gender view sorted by weight, built in the snapshot of the {@link PetSnapshotStore} by the
+ * {@link PetSnapshotViewLoader}: the same order as the pages of the provider (weight, then ID),
+ * and the changes of the pets come with the next snapshot.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22, shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class})
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetSnapshotViewLoaderTest {
+
+    private static final int PAGE_SIZE = 4;
+    private static final int NB_PETS = 10;
+
+    // Time given to a load (the loads run in the pool of the AsyncTasks, the refreshes
+    // of the store in its thread)
+    private static final long LOAD_TIMEOUT_MS = 10000;
+
+    private PetProvider mProvider;
+    private PetSnapshotStore mStore;
+    private PetSnapshotViewLoader mLoader;
+    private final List<PetRows> mLoads = Collections.synchronizedList(new ArrayList<PetRows>());
+
+    private final PetSnapshotStore.Listener mStoreListener = new PetSnapshotStore.Listener() {
+        @Override
+        public void onSnapshotChanged(@NonNull PetColumnarSnapshot snapshot) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = Robolectric.setupContentProvider(PetProvider.class);
+        for (int i = 1; i <= NB_PETS; i++) {
+            // Genders male female male female...: the males are 1 3 5 7 9
+            // Weights 1 2 0 1 2 0 1 2 0 1: the order of the males is 3 9 1 7 5
+            insert("Pet " + i, i % 2 == 1 ? PetEntry.GENDER_MALE : PetEntry.GENDER_FEMALE, i % 3);
+        }
+
+        mStore = new PetSnapshotStore(RuntimeEnvironment.getApplication().getContentResolver());
+        mLoader = new PetSnapshotViewLoader(RuntimeEnvironment.getApplication(), mStore,
+                new PetColumnarSnapshot.Filter().setGender(PetEntry.GENDER_MALE),
+                PetEntry.SELECTION_GENDER, new String[] {String.valueOf(PetEntry.GENDER_MALE)},
+                PAGE_SIZE);
+        mLoader.registerListener(0, new Loader.OnLoadCompleteListener<PetRows>() {
+            @Override
+            public void onLoadComplete(Loader<PetRows> loader, PetRows rows) {
+                mLoads.add(rows);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mLoader.reset();
+        mStore.removeListener(mStoreListener);
+        mProvider.shutdown();
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void genderSortedByWeight() {
+        // The snapshot is loaded before the view: the whole view at once, with no page
+        mStore.addListener(mStoreListener);
+        awaitSnapshot();
+
+        mLoader.startLoading();
+        PetRows rows = awaitLoad();
+        assertTrue(rows instanceof PetSnapshotViewLoader.SnapshotRows);
+        assertIds(rows, 3, 9, 1, 7, 5);
+
+        // A change of weight moves the pet, a new female is not in the view
+        update(9, 2);
+        insert("Pet 11", PetEntry.GENDER_FEMALE, 0);
+        assertIds(awaitIds(3, 1, 7, 5, 9), 3, 1, 7, 5, 9);
+
+        delete(7);
+        assertIds(awaitIds(3, 1, 5, 9), 3, 1, 5, 9);
+    }
+
+    @Test
+    public void pagesBeforeTheSnapshot() {
+        // The first page may come from the provider, then the snapshot gives the whole view
+        mLoader.startLoading();
+        awaitLoad();
+        assertIds(awaitIds(3, 9, 1, 7, 5), 3, 9, 1, 7, 5);
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    private void insert(String name, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        assertNotNull(mProvider.insert(PetEntry.CONTENT_URI, values));
+    }
+
+    private void update(long id, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), values, null, null));
+    }
+
+    private void delete(long id) {
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null));
+    }
+
+    private void awaitSnapshot() {
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+        while (mStore.getSnapshot() == PetColumnarSnapshot.EMPTY) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No snapshot after " + LOAD_TIMEOUT_MS + " ms");
+            }
+            idle();
+        }
+    }
+
+    /**
+     * Wait for the next rows of the loader. The main looper runs the deliveries, and its
+     * clock runs the coalescing window of the notifications.
+     */
+    private PetRows awaitLoad() {
+        int nbLoads = mLoads.size();
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+        while (mLoads.size() == nbLoads) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No load after " + LOAD_TIMEOUT_MS + " ms");
+            }
+            idle();
+        }
+        return mLoads.get(mLoads.size() - 1);
+    }
+
+    /**
+     * Wait for rows with these IDs (a change can give several loads: the notifications
+     * and the refreshes of the store are not coalesced together).
+     */
+    private PetRows awaitIds(long... ids) {
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+        while (true) {
+            if (!mLoads.isEmpty()) {
+                PetRows rows = mLoads.get(mLoads.size() - 1);
+                if (Arrays.equals(ids, getIds(rows))) {
+                    return rows;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return mLoads.get(mLoads.size() - 1);
+            }
+            idle();
+        }
+    }
+
+    private static void idle() {
+        ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long[] getIds(PetRows rows) {
+        long[] ids = new long[rows.getCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rows.getId(i);
+        }
+        return ids;
+    }
+
+    private static void assertIds(PetRows rows, long... ids) {
+        assertEquals(Arrays.toString(ids), Arrays.toString(getIds(rows)));
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.pets;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Loader;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetJobSchedulerShadow;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The pages of the {@link PetViewLoader} (keyset pagination), on a view sorted by weight
+ * where many pets have the same weight, with the pets deleted between two pages: each pet
+ * alive is in the view once, in the order of the weight then of the ID.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22, shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class})
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetViewLoaderTest {
+
+    private static final int PAGE_SIZE = 4;
+    private static final int NB_PETS = 10;
+
+    // Time given to a load (the loads run in the pool of the AsyncTasks)
+    private static final long LOAD_TIMEOUT_MS = 10000;
+
+    private PetProvider mProvider;
+    private PetViewLoader mLoader;
+    private final List<PetRows> mLoads = Collections.synchronizedList(new ArrayList<PetRows>());
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = Robolectric.setupContentProvider(PetProvider.class);
+        for (int i = 1; i <= NB_PETS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            // Weights 1 2 0 1 2 0 1 2 0 1: the order of the view is 3 6 9 1 4 7 10 2 5 8
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i % 3);
+            assertNotNull(mProvider.insert(PetEntry.CONTENT_URI, values));
+        }
+
+        mLoader = new PetViewLoader(RuntimeEnvironment.getApplication(), PetEntry.COLUMN_PET_WEIGHT,
+                null, null, PAGE_SIZE);
+        mLoader.registerListener(0, new Loader.OnLoadCompleteListener<PetRows>() {
+            @Override
+            public void onLoadComplete(Loader<PetRows> loader, PetRows rows) {
+                mLoads.add(rows);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mLoader.reset();
+        mProvider.shutdown();
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void deletesBetweenPages() {
+        mLoader.startLoading();
+        assertIds(awaitLoad(), 3, 6, 9, 1);
+
+        // The last pet of the page: the next page starts after it all the same,
+        // among the pets of the same weight
+        delete(1);
+        assertIds(awaitLoad(), 3, 6, 9);
+
+        mLoader.loadMore();
+        assertIds(awaitLoad(), 3, 6, 9, 4, 7, 10, 2);
+
+        // A pet of the next page, before it is loaded: the last page is not full
+        delete(5);
+        awaitLoad();
+        mLoader.loadMore();
+        assertIds(awaitLoad(), 3, 6, 9, 4, 7, 10, 2, 8);
+
+        // The whole view is loaded: a new pet comes at its place
+        insert("Pet 11", 1);
+        assertIds(awaitLoad(), 3, 6, 9, 4, 7, 10, 11, 2, 8);
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    private void insert(String name, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        assertNotNull(mProvider.insert(PetEntry.CONTENT_URI, values));
+    }
+
+    private void delete(long id) {
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null));
+    }
+
+    /**
+     * Wait for the next rows of the loader. The main looper runs the deliveries, and its
+     * clock runs the coalescing window of the notifications.
+     */
+    private PetRows awaitLoad() {
+        int nbLoads = mLoads.size();
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+        while (mLoads.size() == nbLoads) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No load after " + LOAD_TIMEOUT_MS + " ms");
+            }
+            ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return mLoads.get(mLoads.size() - 1);
+    }
+
+    private static void assertIds(PetRows rows, long... ids) {
+        long[] loadedIds = new long[rows.getCount()];
+        for (int i = 0; i < loadedIds.length; i++) {
+            loadedIds[i] = rows.getId(i);
+        }
+        assertEquals(Arrays.toString(ids), Arrays.toString(loadedIds));
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of the data layer, on the JVM (Robolectric, out of the app):
+ * a {@link PetProvider} on a new database, measured at several numbers of rows.
+ *
+ * Operations: bulk insert, query by id, full scan, filtered query, single insert,
+ * update and delete by id, and delete all. The writes by id are measured with and without
+ * the compiled statements, and the delete by id with tombstones and with real deletes.
+ * Each configuration runs on its own new table, in a random order, over several rounds
+ * after a warm-up: a result is the median of its passes.
+ *
+ * Each result is compared with the same result
+ * of the baseline (src/test/resources/{@link #BASELINE_FILE}, the results of the reference
+ * machine): a result more than {@link #REGRESSION_TOLERANCE} slower is a regression,
+ * and so is a result missing from the baseline.
+ *
+ * "./gradlew benchmark" runs it and fails on a regression (the other unit test tasks skip it).
+ * "./gradlew benchmark -Pbenchmark.record" writes the results into the baseline instead.
+ * The results of the last run are in build/benchmark/{@link #RESULTS_FILE}.
+ *
+ * The SQLite is the native one of Robolectric (a recent SQLite, like the one of the devices):
+ * the SQLite of the legacy mode is too old for the partial indexes of the schema.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22, shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class})
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetBenchmark {
+    public static final String LOG_TAG = PetBenchmark.class.getSimpleName();
+
+    public static final String BASELINE_FILE = "benchmark_baseline.json";
+    public static final String RESULTS_FILE = "benchmark_results.json";
+
+    // Set by the benchmark task of app/build.gradle
+    private static final String PROPERTY_BASELINE = "pets.benchmark.baseline";
+    private static final String PROPERTY_RESULTS = "pets.benchmark.results";
+    private static final String PROPERTY_RECORD = "pets.benchmark.record";
+    private static final String PROPERTY_SIZES = "pets.benchmark.sizes";
+
+    private static final String DEFAULT_SIZES = "1000,100000";
+
+    // A result up to 20% slower than its baseline is not a regression
+    public static final double REGRESSION_TOLERANCE = 0.20;
+
+    // Number of operations measured, for the operations done row by row
+    private static final int NB_SINGLE_OPERATIONS = 200;
+    private static final int NB_QUERIES_BY_ID = 1000;
+    private static final int BULK_INSERT_CHUNK = 1000;
+
+    // Each size is measured over several rounds, after warm-up rounds on a small table
+    private static final int NB_ROUNDS = 5;
+    private static final int NB_WARM_UP_ROUNDS = 3;
+    private static final int WARM_UP_ROWS = 1000;
+
+    // Suffix of the writes measured without the compiled statements of the provider
+    private static final String UNCACHED_SUFFIX = "_uncached";
+    // Suffix of the deletes measured in tombstone mode (the default mode of the app)
+    private static final String TOMBSTONE_SUFFIX = "_tombstone";
+
+    private static final String[] BREEDS = {
+            "Terrier", "Labrador", "Poodle", "Beagle", "Siamese", "Persian", "Bulldog",
+            "Boxer", "Maine Coon", "Sphynx", "Husky", "Collie", "Dalmatian", "Pug"
+    };
+    private static final String[] LIST_COLUMNS = {
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED
+    };
+
+    // JSON keys
+    private static final String KEY_RESULTS = "results";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_ROWS = "rows";
+    private static final String KEY_PASSES = "passes";
+    private static final String KEY_US_PER_OPERATION = "us_per_op";
+    private static final String KEY_BASELINE_US_PER_OPERATION = "baseline_us_per_op";
+    private static final String KEY_REGRESSION = "regression";
+    private static final String KEY_NB_REGRESSIONS = "regressions";
+
+    // Same data for each run
+    private final Random mRandom = new Random(42);
+
+    // Results of the run, and the results that are regressions
+    private final JSONArray mResults = new JSONArray();
+    private final List<String> mRegressions = new ArrayList<>();
+    // Null when the run writes the baseline
+    private JSONObject mBaseline;
+
+    @Test
+    public void run() throws JSONException, IOException {
+        boolean record = Boolean.getBoolean(PROPERTY_RECORD);
+        File baselineFile = new File(System.getProperty(PROPERTY_BASELINE,
+                "src/test/resources/" + BASELINE_FILE));
+        mBaseline = record ? null : readReport(baselineFile);
+
+        // Warm-up (JIT, SQLite, Robolectric): rounds on a small table, not measured
+        for (int round = 0; round < NB_WARM_UP_ROUNDS; round++) {
+            runRound(WARM_UP_ROWS, null);
+        }
+
+        for (String size : System.getProperty(PROPERTY_SIZES, DEFAULT_SIZES).split(",")) {
+            int nbRows = Integer.parseInt(size.trim());
+
+            // Times of each result (us by operation), one by pass
+            Map<String, List<Double>> times = new LinkedHashMap<>();
+            for (int round = 0; round < NB_ROUNDS; round++) {
+                runRound(nbRows, times);
+            }
+            for (Map.Entry<String, List<Double>> time : times.entrySet()) {
+                addResult(time.getKey(), nbRows, time.getValue());
+            }
+        }
+
+        JSONObject report = new JSONObject();
+        report.put(KEY_RESULTS, mResults);
+        report.put(KEY_NB_REGRESSIONS, mRegressions.size());
+        writeReport(report, new File(System.getProperty(PROPERTY_RESULTS, "build/benchmark/" + RESULTS_FILE)));
+        if (record) {
+            writeReport(report, baselineFile);
+            return;
+        }
+
+        assertTrue("Regressions (see " + RESULTS_FILE + "): " + mRegressions, mRegressions.isEmpty());
+    }
+
+    /**
+     * One pass by configuration (with or without the compiled statements, tombstones or real
+     * deletes), in a random order: no configuration always runs first, on the coldest state.
+     *
+     * @param nbRows rows of the table at the start of each pass
+     * @param times  where the times are added, or null for the warm-up
+     */
+    private void runRound(int nbRows, @Nullable Map<String, List<Double>> times) {
+        List<boolean[]> passes = new ArrayList<>();
+        for (boolean cached : new boolean[] {true, false}) {
+            for (boolean tombstones : new boolean[] {true, false}) {
+                passes.add(new boolean[] {cached, tombstones});
+            }
+        }
+        Collections.shuffle(passes, mRandom);
+
+        for (boolean[] pass : passes) {
+            // Each pass has its own database: the same table, without the rows and the
+            // tombstones of the passes before it
+            RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+            PetProvider provider = Robolectric.setupContentProvider(PetProvider.class);
+            try {
+                provider.setStatementCacheEnabled(pass[0]);
+                provider.setTombstoneMode(pass[1]);
+                runPass(provider, nbRows, pass[0], pass[1], times);
+            } finally {
+                provider.shutdown();
+                RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+            }
+        }
+    }
+
+    private void runPass(PetProvider provider, int nbRows, boolean cached, boolean tombstones,
+                         @Nullable Map<String, List<Double>> times) {
+        String suffix = cached ? "" : UNCACHED_SUFFIX;
+        long start;
+
+        // Bulk insert: the table is filled by chunks
+        start = System.nanoTime();
+        for (int first = 0; first < nbRows; first += BULK_INSERT_CHUNK) {
+            ContentValues[] chunk = new ContentValues[Math.min(BULK_INSERT_CHUNK, nbRows - first)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = newPet(first + i);
+            }
+            provider.bulkInsert(PetEntry.CONTENT_URI, chunk);
+        }
+        addTime(times, "bulk_insert", nbRows, start);
+
+        // Query by id (random ids: the row cache only helps on the ids already read)
+        start = System.nanoTime();
+        for (int i = 0; i < NB_QUERIES_BY_ID; i++) {
+            Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + mRandom.nextInt(nbRows));
+            readAll(provider.query(petUri, null, null, null, null));
+        }
+        addTime(times, "query_by_id", NB_QUERIES_BY_ID, start);
+
+        // Full scan of the list columns
+        start = System.nanoTime();
+        readAll(provider.query(PetEntry.CONTENT_URI, LIST_COLUMNS, null, null, null));
+        addTime(times, "full_scan", 1, start);
+
+        // Filtered query: one query by breed
+        start = System.nanoTime();
+        for (String breed : BREEDS) {
+            readAll(provider.query(PetEntry.CONTENT_URI, LIST_COLUMNS,
+                    PetEntry.COLUMN_PET_BREED + "=?", new String[] {breed}, null));
+        }
+        addTime(times, "filtered_query", BREEDS.length, start);
+
+        // Single insert: one transaction by pet
+        Uri[] petUris = new Uri[NB_SINGLE_OPERATIONS];
+        start = System.nanoTime();
+        for (int i = 0; i < NB_SINGLE_OPERATIONS; i++) {
+            petUris[i] = provider.insert(PetEntry.CONTENT_URI, newPet(nbRows + i));
+        }
+        addTime(times, "single_insert" + suffix, NB_SINGLE_OPERATIONS, start);
+
+        // Update by id
+        start = System.nanoTime();
+        for (int i = 0; i < NB_SINGLE_OPERATIONS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(60));
+            provider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + mRandom.nextInt(nbRows)),
+                    values, null, null);
+        }
+        addTime(times, "update" + suffix, NB_SINGLE_OPERATIONS, start);
+
+        // Delete by id, of the pets of the single insert: an UPDATE in tombstone mode, a DELETE else
+        start = System.nanoTime();
+        for (Uri petUri : petUris) {
+            provider.delete(petUri, null, null);
+        }
+        addTime(times, "delete_by_id" + (tombstones ? TOMBSTONE_SUFFIX : "") + suffix,
+                NB_SINGLE_OPERATIONS, start);
+
+        // Delete all
+        start = System.nanoTime();
+        provider.delete(PetEntry.CONTENT_URI, null, null);
+        addTime(times, "delete_all", 1, start);
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    private ContentValues newPet(int index) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + index);
+        values.put(PetEntry.COLUMN_PET_BREED, BREEDS[mRandom.nextInt(BREEDS.length)]);
+        values.put(PetEntry.COLUMN_PET_GENDER, index % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(60));
+        return values;
+    }
+
+    // Read every column of every row, like a list would do
+    private static void readAll(Cursor cursor) {
+        try {
+            int nbColumns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < nbColumns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addTime(@Nullable Map<String, List<Double>> times, String name, int nbOperations,
+                                long startNanos) {
+        double microsPerOperation = (System.nanoTime() - startNanos) / 1000.0 / nbOperations;
+        if (times == null) {
+            return;
+        }
+        List<Double> passTimes = times.get(name);
+        if (passTimes == null) {
+            passTimes = new ArrayList<>();
+            times.put(name, passTimes);
+        }
+        passTimes.add(microsPerOperation);
+    }
+
+    /**
+     * Add a result, and compare it with the baseline (if the run does not write it).
+     *
+     * @param passTimes times of the passes (us by operation): the result is their median,
+     *                  a pass slowed by the machine (GC, other processes) does not change it
+     */
+    private void addResult(String name, int nbRows, List<Double> passTimes) throws JSONException {
+        List<Double> sortedTimes = new ArrayList<>(passTimes);
+        Collections.sort(sortedTimes);
+        int middle = sortedTimes.size() / 2;
+        double microsPerOperation = sortedTimes.size() % 2 == 1 ? sortedTimes.get(middle)
+                : (sortedTimes.get(middle - 1) + sortedTimes.get(middle)) / 2;
+
+        JSONObject result = new JSONObject();
+        result.put(KEY_NAME, name);
+        result.put(KEY_ROWS, nbRows);
+        result.put(KEY_PASSES, new JSONArray(passTimes));
+        result.put(KEY_US_PER_OPERATION, microsPerOperation);
+
+        String regression = mBaseline != null ? compareWithBaseline(result, name, nbRows) : null;
+        result.put(KEY_REGRESSION, regression != null);
+        mResults.put(result);
+        if (regression != null) {
+            mRegressions.add(regression);
+        }
+
+        System.out.println(LOG_TAG + ": " + name + " (" + nbRows + " rows): "
+                + String.format("%.1f", microsPerOperation) + " us/op" + (regression != null ? " - REGRESSION" : ""));
+    }
+
+    /**
+     * @return the regression of this result, or null if it is not slower than its baseline
+     */
+    private String compareWithBaseline(JSONObject result, String name, int nbRows) throws JSONException {
+        JSONObject baselineResult = findResult(mBaseline, name, nbRows);
+        if (baselineResult == null) {
+            return name + " (" + nbRows + " rows): not in the baseline";
+        }
+
+        double microsPerOperation = result.getDouble(KEY_US_PER_OPERATION);
+        double baselineMicros = baselineResult.getDouble(KEY_US_PER_OPERATION);
+        result.put(KEY_BASELINE_US_PER_OPERATION, baselineMicros);
+        if (microsPerOperation > baselineMicros * (1 + REGRESSION_TOLERANCE)) {
+            return name + " (" + nbRows + " rows): " + String.format("%.1f", microsPerOperation)
+                    + " us/op, baseline " + String.format("%.1f", baselineMicros);
+        }
+        return null;
+    }
+
+    private static JSONObject findResult(JSONObject report, String name, int nbRows) throws JSONException {
+        JSONArray results = report.optJSONArray(KEY_RESULTS);
+        if (results == null) {
+            return null;
+        }
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            if (name.equals(result.optString(KEY_NAME)) && result.optInt(KEY_ROWS) == nbRows) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static JSONObject readReport(File file) throws IOException, JSONException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            Scanner scanner = new Scanner(inputStream, "UTF-8").useDelimiter("\\A");
+            return new JSONObject(scanner.hasNext() ? scanner.next() : "{}");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    static void writeReport(JSONObject report, File file) throws IOException, JSONException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(report.toString(2));
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        System.out.println(LOG_TAG + ": results written in " + file);
+    }
+}
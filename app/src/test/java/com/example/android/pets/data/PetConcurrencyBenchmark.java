@@ -0,0 +1,245 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Readers against a writer, in the two modes of the database: N threads run the query of the
+ * catalog while one thread inserts pets by small transactions, for a fixed time.
+ *
+ * Serial mode: the readers and the writer share the connection of {@link PetDbHelper}.
+ * Concurrent mode: write-ahead logging, the readers share the database of the helper and
+ * get their connections from its pool, like the queries of {@link PetProvider}.
+ *
+ * The throughputs (queries and rows written by second) are in the log and in
+ * build/benchmark/{@link #RESULTS_FILE}: no baseline, the test only fails on an error
+ * of a thread, or on a thread that made no progress. It runs with "./gradlew benchmark"
+ * (see {@link PetBenchmark}).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22, shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class})
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetConcurrencyBenchmark {
+    public static final String LOG_TAG = PetConcurrencyBenchmark.class.getSimpleName();
+
+    public static final String RESULTS_FILE = "concurrency_results.json";
+
+    // Set by the benchmark task of app/build.gradle
+    private static final String PROPERTY_RESULTS = "pets.benchmark.concurrency_results";
+    private static final String PROPERTY_READERS = "pets.benchmark.readers";
+
+    private static final String DEFAULT_READERS = "1,4";
+
+    // Pets in the table before the measure, and time of the measure of each mode
+    private static final int NB_ROWS = 10000;
+    private static final long DURATION_MS = 3000;
+    // Time of the warm-up (JIT, SQLite, Robolectric), not measured
+    private static final long WARM_UP_MS = 1000;
+
+    // The writer inserts the pets by transactions of this size
+    private static final int WRITE_TRANSACTION_ROWS = 20;
+    // A reader reads the first page of the catalog
+    private static final String PAGE_SIZE = "100";
+
+    private static final String[] LIST_COLUMNS = {
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED
+    };
+
+    // JSON keys
+    private static final String KEY_RESULTS = "results";
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_READERS = "readers";
+    private static final String KEY_QUERIES_PER_SECOND = "queries_per_s";
+    private static final String KEY_ROWS_WRITTEN_PER_SECOND = "rows_written_per_s";
+    private static final String KEY_MAX_QUERY_MS = "max_query_ms";
+
+    private static final String MODE_SERIAL = "serial";
+    private static final String MODE_CONCURRENT = "concurrent";
+
+    @Test
+    public void run() throws JSONException, IOException, InterruptedException {
+        runMode(false, 1, WARM_UP_MS);
+        runMode(true, 1, WARM_UP_MS);
+
+        JSONArray results = new JSONArray();
+        for (String readers : System.getProperty(PROPERTY_READERS, DEFAULT_READERS).split(",")) {
+            int nbReaders = Integer.parseInt(readers.trim());
+            for (boolean concurrentMode : new boolean[] {false, true}) {
+                results.put(runMode(concurrentMode, nbReaders, DURATION_MS));
+            }
+        }
+
+        JSONObject report = new JSONObject();
+        report.put(KEY_RESULTS, results);
+        PetBenchmark.writeReport(report,
+                new File(System.getProperty(PROPERTY_RESULTS, "build/benchmark/" + RESULTS_FILE)));
+    }
+
+    private JSONObject runMode(boolean concurrentMode, int nbReaders, long durationMs)
+            throws JSONException, InterruptedException {
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+        try {
+            return measure(concurrentMode, nbReaders, durationMs);
+        } finally {
+            RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+        }
+    }
+
+    private JSONObject measure(boolean concurrentMode, final int nbReaders, long durationMs)
+            throws JSONException, InterruptedException {
+        final PetDbHelper dbHelper = new PetDbHelper(RuntimeEnvironment.getApplication(), concurrentMode);
+        final SQLiteDatabase writer = dbHelper.getWritableDatabase();
+        fill(writer);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] nbQueries = new long[nbReaders];
+        final long[] maxQueryNanos = new long[nbReaders];
+        final long[] nbRowsWritten = new long[1];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nbReaders; i++) {
+            final int reader = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            SQLiteDatabase db = dbHelper.getReadableDatabase();
+                            long queryStart = System.nanoTime();
+                            readAll(db.query(PetDbHelper.PETS_VIEW_NAME, LIST_COLUMNS, null, null,
+                                    null, null, PetEntry.COLUMN_PET_NAME, PAGE_SIZE));
+                            maxQueryNanos[reader] = Math.max(maxQueryNanos[reader], System.nanoTime() - queryStart);
+                            nbQueries[reader]++;
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }, LOG_TAG + " reader " + i));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    int index = NB_ROWS;
+                    while (!stop.get()) {
+                        writer.beginTransaction();
+                        try {
+                            for (int i = 0; i < WRITE_TRANSACTION_ROWS; i++) {
+                                writer.insertOrThrow(PetEntry.TABLE_NAME, null, newPet(index++));
+                            }
+                            writer.setTransactionSuccessful();
+                        } finally {
+                            writer.endTransaction();
+                        }
+                        nbRowsWritten[0] += WRITE_TRANSACTION_ROWS;
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        }, LOG_TAG + " writer"));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        Thread.sleep(durationMs);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        dbHelper.close();
+
+        String mode = concurrentMode ? MODE_CONCURRENT : MODE_SERIAL;
+        assertTrue(mode + ", " + nbReaders + " readers: " + errors, errors.isEmpty());
+        long totalQueries = 0;
+        long maxNanos = 0;
+        for (int i = 0; i < nbReaders; i++) {
+            assertTrue(mode + ": the reader " + i + " made no query", nbQueries[i] > 0);
+            totalQueries += nbQueries[i];
+            maxNanos = Math.max(maxNanos, maxQueryNanos[i]);
+        }
+        assertTrue(mode + ": the writer wrote no row", nbRowsWritten[0] > 0);
+
+        JSONObject result = new JSONObject();
+        result.put(KEY_MODE, mode);
+        result.put(KEY_READERS, nbReaders);
+        result.put(KEY_QUERIES_PER_SECOND, totalQueries / seconds);
+        result.put(KEY_ROWS_WRITTEN_PER_SECOND, nbRowsWritten[0] / seconds);
+        result.put(KEY_MAX_QUERY_MS, maxNanos / 1000000);
+        System.out.println(LOG_TAG + ": " + mode + ", readers: " + nbReaders + ", "
+                + String.format("%.0f", totalQueries / seconds) + " queries/s, "
+                + String.format("%.0f", nbRowsWritten[0] / seconds) + " rows written/s, "
+                + "slowest query " + maxNanos / 1000000 + " ms");
+        return result;
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+    private static void fill(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < NB_ROWS; i++) {
+                db.insertOrThrow(PetEntry.TABLE_NAME, null, newPet(i));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static ContentValues newPet(int index) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + index);
+        values.put(PetEntry.COLUMN_PET_GENDER, index % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + index % 60);
+        return values;
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            int nbColumns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < nbColumns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
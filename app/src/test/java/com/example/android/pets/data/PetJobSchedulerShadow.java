@@ -0,0 +1,40 @@
+package com.example.android.pets.data;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JobScheduler of the unit tests, before Android 8: the shadow of Robolectric has methods with
+ * the JobWorkItem of Android 8, so it fails on Android 5 and 6 (at the first job of the
+ * maintenance). This one only keeps the jobs.
+ *
+ * Use: @Config(shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class}).
+ */
+@Implements(JobScheduler.class)
+public class PetJobSchedulerShadow {
+
+    /**
+     * The scheduler given by the context (JobSchedulerImpl is not in the SDK).
+     */
+    @Implements(className = "android.app.JobSchedulerImpl", isInAndroidSdk = false)
+    public static class Impl extends PetJobSchedulerShadow {
+        private final List<JobInfo> mJobs = Collections.synchronizedList(new ArrayList<JobInfo>());
+
+        @Implementation
+        public int schedule(JobInfo job) {
+            mJobs.add(job);
+            return JobScheduler.RESULT_SUCCESS;
+        }
+
+        public List<JobInfo> getJobs() {
+            return mJobs;
+        }
+    }
+}
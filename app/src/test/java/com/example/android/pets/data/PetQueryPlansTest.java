@@ -0,0 +1,173 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import com.example.android.pets.data.PetContract.PetChangesEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The shapes of the queries of the catalog, with the index each one must use: the plan
+ * of each shape (EXPLAIN QUERY PLAN, on the schema of {@link PetDbHelper}) must use its
+ * index, without a temporary B-tree to sort the rows.
+ *
+ * A change of the schema or of a query that loses an index fails here, before the slow
+ * query log shows it on a big table.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22, shadows = {PetJobSchedulerShadow.class, PetJobSchedulerShadow.Impl.class})
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetQueryPlansTest {
+
+    // Columns of the list of the catalog
+    private static final String[] LIST_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private static final String PRIMARY_KEY = "PRIMARY KEY";
+    private static final String TEMP_B_TREE = "TEMP B-TREE";
+    // "SCAN SUBQUERY" only reads the rows of the sub-query
+    private static final String SCAN_TABLE = "SCAN TABLE";
+    private static final String MATERIALIZE = "MATERIALIZE";
+
+    private PetDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mDbHelper = new PetDbHelper(RuntimeEnvironment.getApplication());
+        mDatabase = mDbHelper.getReadableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        RuntimeEnvironment.getApplication().deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    // The pages of the whole list (PetDeltaLoader)
+    @Test
+    public void pageById() {
+        assertServedBy(PRIMARY_KEY, PetEntry._ID + ">?", PetEntry._ID + " ASC", "0");
+    }
+
+    @Test
+    public void sortedByName() {
+        assertServedBy(PetDbHelper.INDEX_NAME_BREED, null, PetEntry.SORT_BY_NAME);
+    }
+
+    @Test
+    public void sortedByWeight() {
+        assertServedBy(PetDbHelper.INDEX_WEIGHT, null, PetEntry.SORT_BY_WEIGHT);
+    }
+
+    @Test
+    public void weightRange() {
+        assertServedBy(PetDbHelper.INDEX_WEIGHT,
+                PetEntry.SELECTION_WEIGHT_RANGE, PetEntry.SORT_BY_WEIGHT, "1", "10");
+    }
+
+    @Test
+    public void genderSortedByWeight() {
+        assertServedBy(PetDbHelper.INDEX_GENDER_WEIGHT,
+                PetEntry.SELECTION_GENDER, PetEntry.SORT_BY_WEIGHT,
+                String.valueOf(PetEntry.GENDER_MALE));
+    }
+
+    @Test
+    public void genderWeightRange() {
+        assertServedBy(PetDbHelper.INDEX_GENDER_WEIGHT,
+                PetEntry.SELECTION_GENDER + " AND " + PetEntry.SELECTION_WEIGHT_RANGE, PetEntry.SORT_BY_WEIGHT,
+                String.valueOf(PetEntry.GENDER_FEMALE), "1", "10");
+    }
+
+    // The next pages of the sorted views (keyset pagination): the index seeks to the last
+    // pet of the previous page
+    @Test
+    public void pageSortedByName() {
+        assertServedBy(PetDbHelper.INDEX_NAME_BREED,
+                PetEntry.buildSelectionAfter(PetEntry.COLUMN_PET_NAME), PetEntry.SORT_BY_NAME,
+                "Rex", "Rex", "10");
+    }
+
+    @Test
+    public void pageSortedByWeight() {
+        assertServedBy(PetDbHelper.INDEX_WEIGHT,
+                PetEntry.buildSelectionAfter(PetEntry.COLUMN_PET_WEIGHT), PetEntry.SORT_BY_WEIGHT,
+                "5", "5", "10");
+    }
+
+    @Test
+    public void pageWeightRange() {
+        assertServedBy(PetDbHelper.INDEX_WEIGHT,
+                PetEntry.SELECTION_WEIGHT_RANGE + " AND " + PetEntry.buildSelectionAfter(PetEntry.COLUMN_PET_WEIGHT),
+                PetEntry.SORT_BY_WEIGHT, "1", "10", "5", "5", "10");
+    }
+
+    @Test
+    public void pageGenderSortedByWeight() {
+        assertServedBy(PetDbHelper.INDEX_GENDER_WEIGHT,
+                PetEntry.SELECTION_GENDER + " AND " + PetEntry.buildSelectionAfter(PetEntry.COLUMN_PET_WEIGHT),
+                PetEntry.SORT_BY_WEIGHT, String.valueOf(PetEntry.GENDER_MALE), "5", "5", "10");
+    }
+
+    // The pages already loaded of a view, read again after a change
+    @Test
+    public void windowSortedByName() {
+        assertServedBy(PetDbHelper.INDEX_NAME_BREED,
+                PetEntry.buildSelectionUpTo(PetEntry.COLUMN_PET_NAME), PetEntry.SORT_BY_NAME,
+                "Rex", "Rex", "10");
+    }
+
+    @Test
+    public void windowGenderSortedByWeight() {
+        assertServedBy(PetDbHelper.INDEX_GENDER_WEIGHT,
+                PetEntry.SELECTION_GENDER + " AND " + PetEntry.buildSelectionUpTo(PetEntry.COLUMN_PET_WEIGHT),
+                PetEntry.SORT_BY_WEIGHT, String.valueOf(PetEntry.GENDER_MALE), "5", "5", "10");
+    }
+
+    // The pets changed since a sequence (the deltas of PetDeltaLoader):
+    // the changes are read from the sequence, and each pet and its breed by its primary key
+    @Test
+    public void changesSince() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, PetProvider.SQL_CHANGES_TABLE, null,
+                null, null, null, PetChangesEntry.COLUMN_SEQUENCE + " ASC", null);
+        String plan = PetSlowQueryLog.explain(mDatabase, sql, new String[] {"0"});
+
+        assertFalse("The plan scans a table: " + plan, plan.contains(SCAN_TABLE));
+        assertFalse("The plan materializes a view: " + plan, plan.contains(MATERIALIZE));
+    }
+
+    /* ********************************************
+
+               Helper methods
+
+    ********************************************** */
+
+    /**
+     * Explain the query of the catalog (the view of the live pets, limited like a page).
+     */
+    private void assertServedBy(String index, String selection, String sortOrder, String... args) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, PetDbHelper.PETS_VIEW_NAME, LIST_COLUMNS,
+                selection, null, null, sortOrder, "100");
+        String plan = PetSlowQueryLog.explain(mDatabase, sql, args);
+
+        assertTrue("The plan doesn't use " + index + ": " + plan, plan.contains(index));
+        assertFalse("The plan sorts in a temporary B-tree: " + plan, plan.contains(TEMP_B_TREE));
+    }
+}